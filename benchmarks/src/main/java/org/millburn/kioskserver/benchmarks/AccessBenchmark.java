@@ -0,0 +1,79 @@
+package org.millburn.kioskserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.millburn.kioskserver.kiosk.AccessToken;
+import org.millburn.kioskserver.kiosk.AccessTokens;
+import org.millburn.kioskserver.relations.AccessPolicy;
+import org.millburn.kioskserver.relations.AccessRelationship;
+import org.millburn.kioskserver.relations.AccessRelationships;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The kiosk and privilege checks every check in starts with
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessBenchmark {
+    private AccessRelationship relation;
+    private AccessPolicy policy;
+    private AccessTokens tokens;
+    private String knownToken;
+    private String unknownToken;
+    private int privilege;
+
+    @Setup
+    public void setup() {
+        StubJdbcTemplate jt = Fixtures.database();
+        AccessRelationships relations = new AccessRelationships(jt);
+        this.relation = relations.getRelation(Fixtures.ACCESS_LEVEL);
+        this.policy = relations.getPolicy(Fixtures.ACCESS_LEVEL);
+        this.tokens = new AccessTokens(relations, jt);
+        // A new string, like the one a request brings, so the lookup compares characters
+        this.knownToken = Fixtures.token(Fixtures.TOKEN_COUNT / 2);
+        this.unknownToken = Fixtures.token(Fixtures.TOKEN_COUNT + 1);
+        this.privilege = 2;
+    }
+
+    @Benchmark
+    public boolean accept() {
+        return relation.accept(privilege);
+    }
+
+    @Benchmark
+    public boolean policyAccepts() {
+        return policy.accepts(privilege);
+    }
+
+    /**
+     * The privilege and window check a scan makes, at 8:15 in the morning
+     */
+    @Benchmark
+    public AccessPolicy.Verdict policyDecide() {
+        return policy.decide(privilege, 8 * 60 + 15);
+    }
+
+    @Benchmark
+    public AccessToken getTokenInfo() {
+        return tokens.getTokenInfo(knownToken);
+    }
+
+    @Benchmark
+    public AccessToken getTokenInfoUnknown() {
+        return tokens.getTokenInfo(unknownToken);
+    }
+}
@@ -0,0 +1,95 @@
+package org.millburn.kioskserver.benchmarks;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.millburn.kioskserver.LoadedMemory;
+import org.millburn.kioskserver.WriteBehindQueue;
+import org.millburn.kioskserver.relations.AttendanceWriter;
+import org.millburn.kioskserver.student.CheckinLog;
+import org.millburn.kioskserver.student.CheckinMetrics;
+import org.millburn.kioskserver.student.CheckinService;
+import org.millburn.kioskserver.student.StatusTransitions;
+import org.millburn.kioskserver.student.StudentController;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * The whole /checkin flow, from the token lookup to the queued writes and the dashboard push,
+ * against a database that answers instantly. The write-behind and attendance threads run as they
+ * do in the server, so the numbers include handing work off to them but not the database itself.
+ * <p>
+ * Log4j is left unconfigured, so only errors are logged. Add -Dorg.apache.logging.log4j.level=INFO
+ * to the JVM options to include the cost of the check in log line.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckinBenchmark {
+    private Path attendanceDirectory;
+    private WriteBehindQueue writeBehind;
+    private AttendanceWriter attendanceWriter;
+    private StudentController controller;
+    private String token;
+    /**
+     * The ids kiosks send, including some that aren't students
+     */
+    private String[] studentIds;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        StubJdbcTemplate jt = Fixtures.database();
+        this.attendanceDirectory = Files.createTempDirectory("kiosk-attendance");
+        this.writeBehind = new WriteBehindQueue(jt, new StubJdbcTemplate.StubTransactionManager(), 10000, 500, 200, 10,
+                attendanceDirectory.resolve("dead-letter.tsv").toString());
+        this.attendanceWriter = new AttendanceWriter(attendanceDirectory.toString(), AttendanceWriter.SyncPolicy.NONE);
+        CheckinMetrics metrics = new CheckinMetrics(new SimpleMeterRegistry(), writeBehind, attendanceWriter);
+        LoadedMemory lm = new LoadedMemory(jt);
+        this.controller = new StudentController(jt, lm, writeBehind,
+                new CheckinService(lm, attendanceWriter, metrics, new CheckinLog(1),
+                        new StatusTransitions("0:1,1:0", 0)));
+        this.token = Fixtures.token(0);
+
+        this.studentIds = new String[Fixtures.STUDENT_COUNT + Fixtures.STUDENT_COUNT / 10];
+        for(int i = 0; i < studentIds.length; i++) {
+            studentIds[i] = Integer.toString(Fixtures.FIRST_STUDENT_ID + i);
+        }
+    }
+
+    @Benchmark
+    public ResponseEntity<String> checkIn() {
+        String studentId = studentIds[next];
+        next = next + 1 == studentIds.length ? 0 : next + 1;
+        return controller.checkIn(token, Fixtures.KIOSK_NAME, studentId);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writeBehind.shutdown();
+        attendanceWriter.shutdown();
+        try(var files = Files.list(attendanceDirectory)) {
+            for(Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(attendanceDirectory);
+    }
+}
@@ -0,0 +1,56 @@
+package org.millburn.kioskserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.millburn.kioskserver.CompiledFilter;
+import org.millburn.kioskserver.Records;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning the filters of a /records or /listRecords request into SQL
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+    /**
+     * What a dashboard sends to see one student's check ins at a kiosk since a day
+     */
+    private final String[] types = {"id", "kiosk", "time"};
+    private final String[] values = {"100042", Fixtures.KIOSK_NAME, "2023-11-18"};
+    private final String[] comparators = {"equals", "equals", "greater_than_or_equal_to"};
+    private Records.Filter[] filters;
+
+    @Setup
+    public void setup() {
+        this.filters = Records.Filter.parseFilters(types, values, comparators);
+    }
+
+    @Benchmark
+    public Records.Filter[] parseFilters() {
+        return Records.Filter.parseFilters(types, values, comparators);
+    }
+
+    @Benchmark
+    public CompiledFilter compile() {
+        return Records.Filter.compile(filters);
+    }
+
+    @Benchmark
+    public CompiledFilter parseAndCompile() {
+        return Records.Filter.compile(Records.Filter.parseFilters(types, values, comparators));
+    }
+}
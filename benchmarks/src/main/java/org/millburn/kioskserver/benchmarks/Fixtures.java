@@ -0,0 +1,50 @@
+package org.millburn.kioskserver.benchmarks;
+
+/**
+ * The data the benchmarks run against, shaped like a school's real tables
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+final class Fixtures {
+    static final String KIOSK_NAME = "High School Kiosk";
+    static final int ACCESS_LEVEL = 2;
+    static final int STUDENT_COUNT = 2000;
+    static final int FIRST_STUDENT_ID = 100000;
+    static final int TOKEN_COUNT = 50;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns the token of the nth kiosk
+     */
+    static String token(int n) {
+        return String.format("00000000-0000-4000-8000-%012d", n);
+    }
+
+    /**
+     * Returns a database holding one relation that is open all day, the kiosk tokens and the
+     * students, with an empty record table
+     */
+    static StubJdbcTemplate database() {
+        Object[][] tokens = new Object[TOKEN_COUNT][];
+        for(int i = 0; i < TOKEN_COUNT; i++) {
+            tokens[i] = new Object[] {token(i), ACCESS_LEVEL};
+        }
+        Object[][] students = new Object[STUDENT_COUNT][];
+        for(int i = 0; i < STUDENT_COUNT; i++) {
+            // Every fourth student doesn't have the privilege the kiosk needs
+            students[i] = new Object[] {FIRST_STUDENT_ID + i, "Student " + i, i % 4 == 0 ? 1 : 2, 1};
+        }
+
+        return new StubJdbcTemplate()
+                // A start hour of -1 keeps the kiosk open at any time of day
+                .withRows("SELECT * FROM relations",
+                        new String[] {"name", "access_level", "privilege", "direction", "start_hour",
+                                "start_minute", "end_hour", "end_minute"},
+                        new Object[] {"Benchmark Relation", ACCESS_LEVEL, 2, 1, -1, 0, 23, 59})
+                .withRows("SELECT * FROM access_tokens", new String[] {"access_token", "access"}, tokens)
+                .withRows("SELECT id, Name, privilege_type, status FROM students",
+                        new String[] {"id", "Name", "privilege_type", "status"}, students);
+    }
+}
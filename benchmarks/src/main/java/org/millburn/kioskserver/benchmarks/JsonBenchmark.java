@@ -0,0 +1,90 @@
+package org.millburn.kioskserver.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.millburn.kioskserver.Records;
+import org.millburn.kioskserver.student.CheckinResponse;
+import org.millburn.kioskserver.student.Student;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the JSON bodies the server sends back
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    /**
+     * The size of a /listRecords or /getStudents page
+     */
+    private static final int PAGE_SIZE = 20;
+
+    private Records record;
+    private Student student;
+    private List<Records> recordPage;
+    private List<Student> studentPage;
+    private CheckinResponse response;
+    private ObjectMapper om;
+
+    @Setup
+    public void setup() {
+        this.record = new Records(1, Fixtures.FIRST_STUDENT_ID, 1, 0, "Sat Nov 18 08:01:02 EST 2023",
+                Fixtures.KIOSK_NAME);
+        this.student = new Student(Fixtures.FIRST_STUDENT_ID, "Student 0", 2, 1);
+        this.recordPage = new ArrayList<>(PAGE_SIZE);
+        this.studentPage = new ArrayList<>(PAGE_SIZE);
+        for(int i = 0; i < PAGE_SIZE; i++) {
+            recordPage.add(new Records(i + 1, Fixtures.FIRST_STUDENT_ID + i, 1, 0,
+                    "Sat Nov 18 08:01:02 EST 2023", Fixtures.KIOSK_NAME));
+            studentPage.add(new Student(Fixtures.FIRST_STUDENT_ID + i, "Student " + i, 2, 1));
+        }
+        this.response = new CheckinResponse(CheckinResponse.APPROVED);
+        // Same as the one StudentController keeps
+        this.om = new ObjectMapper();
+    }
+
+    @Benchmark
+    public String recordToString() {
+        return record.toString();
+    }
+
+    @Benchmark
+    public String studentToString() {
+        return student.toString();
+    }
+
+    /**
+     * A page is written with List.toString, which calls toString on every element
+     */
+    @Benchmark
+    public String recordPageToString() {
+        return recordPage.toString();
+    }
+
+    @Benchmark
+    public String studentPageToString() {
+        return studentPage.toString();
+    }
+
+    @Benchmark
+    public String checkinResponse() throws JsonProcessingException {
+        return om.writeValueAsString(response);
+    }
+}
@@ -0,0 +1,71 @@
+package org.millburn.kioskserver.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.millburn.kioskserver.BinaryRecordEncoder;
+import org.millburn.kioskserver.Records;
+import org.millburn.kioskserver.WebSocketHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding the /liveRecords messages as JSON and in the binary format. The size of each message
+ * is printed once at setup, since bandwidth is what the binary format is for.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LiveRecordsBenchmark {
+    private Records record;
+    private List<Records> snapshot;
+    private BinaryRecordEncoder encoder;
+
+    @Setup
+    public void setup() {
+        this.snapshot = new ArrayList<>(WebSocketHandler.SNAPSHOT_SIZE);
+        for(int i = WebSocketHandler.SNAPSHOT_SIZE; i > 0; i--) {
+            snapshot.add(new Records(i, Fixtures.FIRST_STUDENT_ID + i, 1, 0,
+                    "Sat Nov 18 08:01:" + String.format("%02d", i) + " EST 2023", Fixtures.KIOSK_NAME + " " + i % 3));
+        }
+        this.record = snapshot.get(0);
+        this.encoder = new BinaryRecordEncoder();
+        // Leaves the encoder in the state a connected dashboard is in
+        encoder.snapshot(snapshot);
+
+        System.out.println();
+        System.out.println("snapshot json: " + WebSocketHandler.snapshotMessage(snapshot).getBytes(StandardCharsets.UTF_8).length
+                + " bytes, binary: " + new BinaryRecordEncoder().snapshot(snapshot).getPayloadLength() + " bytes");
+        System.out.println("one record json (as a snapshot): " + WebSocketHandler.snapshotMessage(List.of(record)).getBytes(StandardCharsets.UTF_8).length
+                + " bytes, binary: " + encoder.record(record).getPayloadLength() + " bytes");
+    }
+
+    @Benchmark
+    public String snapshotJson() {
+        return WebSocketHandler.snapshotMessage(snapshot);
+    }
+
+    @Benchmark
+    public Object snapshotBinary() {
+        return new BinaryRecordEncoder().snapshot(snapshot);
+    }
+
+    @Benchmark
+    public Object recordBinary() {
+        return encoder.record(record);
+    }
+}
@@ -0,0 +1,142 @@
+package org.millburn.kioskserver.benchmarks;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.ResultSetWrappingSqlRowSet;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+/**
+ * A JdbcTemplate that never touches a database. Queries answer with rows set up by the benchmark
+ * and writes do nothing, so that a benchmark only measures the server's own code.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class StubJdbcTemplate extends JdbcTemplate {
+    /**
+     * A result, the rows are copied into a new row set every time it is queried
+     */
+    private record Result(String[] columns, Object[][] rows) {
+    }
+
+    /**
+     * Results by the start of the SQL that returns them
+     */
+    private final Map<String, Result> results = new LinkedHashMap<>();
+
+    /**
+     * Sets the rows returned by every query starting with a piece of SQL
+     *
+     * @param sqlPrefix the start of the query
+     * @param columns   the column names
+     * @param rows      the rows, with a value for every column
+     * @return this, so that results can be chained
+     */
+    public StubJdbcTemplate withRows(String sqlPrefix, String[] columns, Object[]... rows) {
+        results.put(sqlPrefix, new Result(columns, rows));
+        return this;
+    }
+
+    @Override
+    public SqlRowSet queryForRowSet(String sql) {
+        return rowSet(sql);
+    }
+
+    @Override
+    public SqlRowSet queryForRowSet(String sql, Object... args) {
+        return rowSet(sql);
+    }
+
+    /**
+     * Counts and MAX(num) come back empty, which the server treats as an empty table
+     */
+    @Override
+    public <T> T queryForObject(String sql, Class<T> requiredType) {
+        return null;
+    }
+
+    @Override
+    public <T> T queryForObject(String sql, Class<T> requiredType, Object... args) {
+        return null;
+    }
+
+    @Override
+    public int update(String sql, Object... args) {
+        return 1;
+    }
+
+    @Override
+    public int[] batchUpdate(String sql, List<Object[]> batchArgs) {
+        return new int[batchArgs.size()];
+    }
+
+    @Override
+    public void execute(String sql) {
+    }
+
+    private SqlRowSet rowSet(String sql) {
+        Result result = null;
+        for(Map.Entry<String, Result> entry : results.entrySet()) {
+            if(sql.startsWith(entry.getKey())) {
+                result = entry.getValue();
+                break;
+            }
+        }
+        if(result == null) {
+            result = new Result(new String[] {"empty"}, new Object[0][]);
+        }
+
+        try {
+            CachedRowSet crs = RowSetProvider.newFactory().createCachedRowSet();
+            RowSetMetaDataImpl md = new RowSetMetaDataImpl();
+            md.setColumnCount(result.columns().length);
+            for(int i = 0; i < result.columns().length; i++) {
+                md.setColumnName(i + 1, result.columns()[i]);
+                md.setColumnLabel(i + 1, result.columns()[i]);
+                boolean isString = result.rows().length > 0 && result.rows()[0][i] instanceof String;
+                md.setColumnType(i + 1, isString ? Types.VARCHAR : Types.INTEGER);
+            }
+            crs.setMetaData(md);
+            for(Object[] row : result.rows()) {
+                crs.moveToInsertRow();
+                for(int i = 0; i < row.length; i++) {
+                    crs.updateObject(i + 1, row[i]);
+                }
+                crs.insertRow();
+                crs.moveToCurrentRow();
+            }
+            crs.beforeFirst();
+            return new ResultSetWrappingSqlRowSet(crs);
+        } catch(SQLException e) {
+            throw new IllegalStateException("Failed to build stub rows for " + sql, e);
+        }
+    }
+
+    /**
+     * A transaction manager for the stub, every transaction commits without doing anything
+     */
+    public static class StubTransactionManager implements PlatformTransactionManager {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.millburn.kioskserver.benchmarks.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dashboards watching /liveRecords, and optionally reloading the first page of /listRecords like
+ * the dashboard does when it is opened
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+final class Dashboards implements AutoCloseable {
+    private final List<WebSocket> sockets = new ArrayList<>();
+    private final AtomicLong messages = new AtomicLong();
+    private final ScheduledExecutorService pollers;
+
+    /**
+     * Connects the dashboards
+     *
+     * @param client      the client to connect with
+     * @param port        the port of the server
+     * @param count       how many dashboards
+     * @param pollMs      how often each dashboard loads /listRecords, 0 to never
+     * @param listRecords where the /listRecords response times go
+     */
+    Dashboards(HttpClient client, int port, int count, long pollMs, Latencies listRecords) {
+        URI live = URI.create("ws://localhost:" + port + "/liveRecords");
+        for(int i = 0; i < count; i++) {
+            sockets.add(client.newWebSocketBuilder().buildAsync(live, new Listener()).join());
+        }
+
+        this.pollers = Executors.newScheduledThreadPool(Math.max(1, Math.min(count, 4)));
+        if(pollMs <= 0) {
+            return;
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/listRecords?page=0&pageSize=20")).build();
+        for(int i = 0; i < count; i++) {
+            // Spreads the dashboards out instead of having them all poll at once
+            pollers.scheduleAtFixedRate(() -> {
+                long start = System.nanoTime();
+                int status;
+                try {
+                    status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                } catch(Exception e) {
+                    status = Latencies.NO_RESPONSE;
+                }
+                listRecords.record(System.nanoTime() - start, status);
+            }, pollMs * i / count, pollMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the number of messages the dashboards received, snapshots included
+     */
+    long getMessages() {
+        return messages.get();
+    }
+
+    @Override
+    public void close() {
+        pollers.shutdownNow();
+        for(WebSocket socket : sockets) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+        }
+    }
+
+    private class Listener implements WebSocket.Listener {
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            if(last) {
+                messages.incrementAndGet();
+            }
+            webSocket.request(1);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.millburn.kioskserver.benchmarks.load;
+
+import ch.vorburger.exec.ManagedProcessException;
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A MariaDB server started from inside the harness, loaded with a dump of the kiosk database
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+final class EmbeddedDatabase implements AutoCloseable {
+    static final String NAME = "kiosk_database";
+    static final String USER = "root";
+    static final String PASSWORD = "";
+    /**
+     * The access level of the harness kiosks, picked to not clash with real ones
+     */
+    static final int ACCESS_LEVEL = 90;
+    static final String RELATION_NAME = "Load Harness";
+    static final int FIRST_STUDENT_ID = 200000;
+
+    /**
+     * The server counters compared before and after a run, Questions counts every statement
+     */
+    private static final String STATUS_QUERY = "SHOW GLOBAL STATUS WHERE Variable_name IN "
+            + "('Questions', 'Com_select', 'Com_insert', 'Com_update', 'Com_commit')";
+
+    private final DB db;
+    private final String url;
+
+    EmbeddedDatabase() throws ManagedProcessException, SQLException {
+        DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+        // Any free port
+        config.setPort(0);
+        // mysqld refuses to start as root unless told to, which is how containers and CI run it
+        if("root".equals(System.getProperty("user.name"))) {
+            config.addArg("--user=root");
+        }
+        this.db = DB.newEmbeddedDB(config.build());
+        this.db.start();
+        String server = "jdbc:mysql://localhost:" + db.getConfiguration().getPort() + "/";
+        // Over JDBC rather than DB.createDB, which runs the bundled mysql client that needs libncurses5
+        try(Connection con = DriverManager.getConnection(server + "?useSSL=false&allowPublicKeyRetrieval=true", USER, PASSWORD);
+            Statement st = con.createStatement()) {
+            st.execute("CREATE DATABASE IF NOT EXISTS " + NAME);
+        }
+        this.url = server + NAME;
+    }
+
+    /**
+     * Returns the JDBC url of the database, without options
+     */
+    String getUrl() {
+        return url;
+    }
+
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection(url + "?useSSL=false&allowPublicKeyRetrieval=true&rewriteBatchedStatements=true",
+                USER, PASSWORD);
+    }
+
+    /**
+     * Runs a dump made by mysqldump, like kiosk_database.sql
+     *
+     * @param dump the path of the dump
+     */
+    void load(Path dump) throws IOException, SQLException {
+        try(Connection con = connect(); Statement st = con.createStatement()) {
+            StringBuilder statement = new StringBuilder();
+            for(String line : Files.readAllLines(dump, StandardCharsets.UTF_8)) {
+                if(line.isBlank() || line.startsWith("--")) {
+                    continue;
+                }
+                statement.append(line).append('\n');
+                // mysqldump ends every statement at the end of a line
+                if(line.stripTrailing().endsWith(";")) {
+                    st.execute(statement.toString());
+                    statement.setLength(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a relation that is open all day, one token per simulated kiosk and the students
+     *
+     * @param tokens   the kiosk tokens
+     * @param students how many students to add
+     */
+    void seed(List<String> tokens, int students) throws SQLException {
+        try(Connection con = connect()) {
+            try(PreparedStatement ps = con.prepareStatement("INSERT INTO relations VALUES (?, ?, 2, 1, -1, 0, 23, 59)")) {
+                // A start hour of -1 keeps the kiosks open no matter when the harness runs
+                ps.setString(1, RELATION_NAME);
+                ps.setInt(2, ACCESS_LEVEL);
+                ps.executeUpdate();
+            }
+            try(PreparedStatement ps = con.prepareStatement("INSERT INTO access_tokens VALUES (?, ?)")) {
+                for(String token : tokens) {
+                    ps.setString(1, token);
+                    ps.setInt(2, ACCESS_LEVEL);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            try(PreparedStatement ps = con.prepareStatement("INSERT INTO students VALUES (?, ?, ?, 1)")) {
+                for(int i = 0; i < students; i++) {
+                    ps.setInt(1, FIRST_STUDENT_ID + i);
+                    ps.setString(2, "Student " + i);
+                    // One student in ten doesn't have the privilege the kiosks need
+                    ps.setInt(3, i % 10 == 0 ? 1 : 2);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Returns the server's statement counters
+     */
+    Map<String, Long> status() throws SQLException {
+        Map<String, Long> status = new HashMap<>();
+        try(Connection con = connect(); Statement st = con.createStatement(); ResultSet rs = st.executeQuery(STATUS_QUERY)) {
+            while(rs.next()) {
+                status.put(rs.getString(1), rs.getLong(2));
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public void close() throws ManagedProcessException {
+        db.stop();
+    }
+}
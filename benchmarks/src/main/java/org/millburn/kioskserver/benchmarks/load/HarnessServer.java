@@ -0,0 +1,12 @@
+package org.millburn.kioskserver.benchmarks.load;
+
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+
+/**
+ * Starts the server's controllers and components, the load harness gives it the database and port
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@SpringBootApplication(scanBasePackages = "org.millburn.kioskserver")
+public class HarnessServer {
+}
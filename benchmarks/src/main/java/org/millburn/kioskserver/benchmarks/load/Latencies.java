@@ -0,0 +1,70 @@
+package org.millburn.kioskserver.benchmarks.load;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps every response time of an endpoint so that exact percentiles can be reported
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+final class Latencies {
+    /**
+     * Stands in for the status code of a request that failed without a response
+     */
+    static final int NO_RESPONSE = -1;
+
+    private final String endpoint;
+    private long[] nanos = new long[4096];
+    private int count;
+    private final Map<Integer, Integer> statuses = new TreeMap<>();
+
+    Latencies(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Records a request
+     *
+     * @param latencyNanos how long the request took
+     * @param status       the status code, or NO_RESPONSE
+     */
+    synchronized void record(long latencyNanos, int status) {
+        if(count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = latencyNanos;
+        statuses.merge(status, 1, Integer::sum);
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    static String header() {
+        return String.format("%-14s %9s %9s %9s %9s %9s %9s  %s", "endpoint", "requests", "req/s", "p50 ms",
+                "p99 ms", "p999 ms", "max ms", "statuses");
+    }
+
+    /**
+     * Returns a line of the report
+     *
+     * @param seconds how long the run took
+     */
+    synchronized String report(double seconds) {
+        if(count == 0) {
+            return String.format("%-14s %9d", endpoint, 0);
+        }
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return String.format("%-14s %9d %9.1f %9.2f %9.2f %9.2f %9.2f  %s", endpoint, count, count / seconds,
+                millis(sorted, 0.50), millis(sorted, 0.99), millis(sorted, 0.999),
+                sorted[count - 1] / 1e6, statuses);
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,328 @@
+package org.millburn.kioskserver.benchmarks.load;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.millburn.kioskserver.Records;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Starts the server against an embedded MariaDB loaded from kiosk_database.sql and puts it under
+ * the load of a fleet of kiosks, while dashboards listen on /liveRecords. Reports throughput and
+ * response time percentiles per endpoint, and how many database statements each check in cost.
+ * <p>
+ * In fleet mode every kiosk scans students at a low rate, and at a high rate for the first seconds
+ * after every bell. In replay mode the scans of an existing record table are sent again at their
+ * original pace, sped up.
+ * <p>
+ * Options are given as --name=value, see {@link #usage()}. Server properties can be set as system
+ * properties, for example -Dkiosk.virtual-threads.enabled=true.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class LoadHarness {
+    /**
+     * A scan from the record table that is replayed
+     *
+     * @param offsetMillis when to send it, from the start of the replay
+     */
+    private record Scan(long offsetMillis, int studentId, String kioskName) {
+    }
+
+    private final Map<String, String> options;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final Latencies checkins = new Latencies("/checkin");
+    private final Latencies listRecords = new Latencies("/listRecords");
+    private List<String> tokens;
+    private int port;
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals < 0) {
+                System.err.println("Unknown argument " + arg);
+                System.err.println(usage());
+                System.exit(2);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        new LoadHarness(options).run();
+    }
+
+    private static String usage() {
+        return """
+                Options:
+                  --mode=fleet|replay        simulate a kiosk fleet, or replay a record table (fleet)
+                  --sql=PATH                 the dump the database is loaded from (kiosk_database.sql)
+                  --kiosks=N                 simulated kiosks, and request threads in replay mode (300)
+                  --students=N               students added to the dump (3000)
+                  --dashboards=N             dashboards on /liveRecords (5)
+                  --dashboard-poll-ms=N      how often each dashboard loads /listRecords, 0 to never (5000)
+                  --duration-s=N             how long fleet mode runs (120)
+                  --bell-period-s=N          seconds between bells (60)
+                  --burst-s=N                seconds of heavy scanning after each bell (10)
+                  --burst-rate=X             scans per second per kiosk after a bell (1.0)
+                  --idle-rate=X              scans per second per kiosk between bells (0.02)
+                  --replay-url=JDBC_URL      the database to replay, the loaded dump by default
+                  --replay-user=USER         (root)
+                  --replay-password=PASSWORD ()
+                  --replay-speed=X           how many times faster than real time (10)
+                  --replay-max-gap-s=X       longest pause between replayed scans, after speeding up (5)
+                """;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return Double.parseDouble(option(name, Double.toString(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        String mode = option("mode", "fleet");
+        if(!mode.equals("fleet") && !mode.equals("replay")) {
+            System.err.println(usage());
+            System.exit(2);
+        }
+        int kiosks = intOption("kiosks", 300);
+        this.tokens = new ArrayList<>(kiosks);
+        for(int i = 0; i < kiosks; i++) {
+            tokens.add(UUID.randomUUID().toString());
+        }
+
+        try(EmbeddedDatabase db = new EmbeddedDatabase()) {
+            System.out.println("Loading " + option("sql", "kiosk_database.sql") + " into " + db.getUrl());
+            db.load(Path.of(option("sql", "kiosk_database.sql")));
+            // Read before anything is checked in, so the replay doesn't pick up its own records
+            List<Scan> scans = mode.equals("replay") ? readScans(db) : List.of();
+            db.seed(tokens, intOption("students", 3000));
+
+            Path attendance = Files.createTempDirectory("kiosk-harness");
+            ConfigurableApplicationContext server = new SpringApplicationBuilder(HarnessServer.class)
+                    .properties(
+                            "server.port=0",
+                            "spring.datasource.url=" + db.getUrl() + "?useSSL=false&allowPublicKeyRetrieval=true"
+                                    + "&rewriteBatchedStatements=true&useServerPrepStmts=true&cachePrepStmts=true",
+                            "spring.datasource.username=" + EmbeddedDatabase.USER,
+                            "spring.datasource.password=" + EmbeddedDatabase.PASSWORD,
+                            "kiosk.attendance.directory=" + attendance,
+                            "kiosk.write-behind.dead-letter-file=" + attendance.resolve("dead-letter.tsv"))
+                    .run();
+            this.port = ((WebServerApplicationContext) server).getWebServer().getPort();
+
+            Map<String, Long> before = db.status();
+            long start;
+            long messages;
+            try(Dashboards dashboards = new Dashboards(client, port, intOption("dashboards", 5),
+                    intOption("dashboard-poll-ms", 5000), listRecords)) {
+                start = System.nanoTime();
+                if(mode.equals("fleet")) {
+                    runFleet();
+                } else {
+                    runReplay(scans);
+                }
+                messages = dashboards.getMessages();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            // Closing the server flushes the write-behind queue, so every check in is counted
+            server.close();
+            Map<String, Long> after = db.status();
+            report(seconds, messages, before, after);
+        }
+    }
+
+    /**
+     * Runs every kiosk on its own thread until the duration is over. A kiosk only scans the next
+     * student once the previous one got an answer, like a real kiosk.
+     */
+    private void runFleet() throws InterruptedException {
+        long duration = TimeUnit.SECONDS.toNanos(intOption("duration-s", 120));
+        long bellPeriod = TimeUnit.SECONDS.toNanos(intOption("bell-period-s", 60));
+        long burst = TimeUnit.SECONDS.toNanos(intOption("burst-s", 10));
+        double burstRate = doubleOption("burst-rate", 1.0);
+        double idleRate = doubleOption("idle-rate", 0.02);
+        int students = intOption("students", 3000);
+        System.out.println("Running " + tokens.size() + " kiosks for " + TimeUnit.NANOSECONDS.toSeconds(duration) + "s");
+
+        ExecutorService kiosks = Executors.newFixedThreadPool(tokens.size());
+        long start = System.nanoTime();
+        for(int k = 0; k < tokens.size(); k++) {
+            String token = tokens.get(k);
+            String kioskName = "Load Kiosk " + k;
+            kiosks.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long now = System.nanoTime() - start;
+                while(now < duration) {
+                    long sincePeriod = now % bellPeriod;
+                    boolean inBurst = sincePeriod < burst;
+                    long phaseEnd = now - sincePeriod + (inBurst ? burst : bellPeriod);
+                    // Scans arrive at random, so the wait until the next one is exponential
+                    double rate = inBurst ? burstRate : idleRate;
+                    long next = now + (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+                    if(next > phaseEnd) {
+                        // The rate changes first, waits for it and draws again
+                        sleepUntil(start + phaseEnd);
+                    } else {
+                        sleepUntil(start + next);
+                        // A few scans are mistyped ids that aren't students
+                        int studentId = random.nextInt(100) < 2 ? random.nextInt(1, 1000)
+                                : EmbeddedDatabase.FIRST_STUDENT_ID + random.nextInt(students);
+                        checkIn(token, kioskName, studentId, System.nanoTime());
+                    }
+                    now = System.nanoTime() - start;
+                }
+            });
+        }
+        kiosks.shutdown();
+        kiosks.awaitTermination(duration + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends the scans at their original pace sped up. Response times are measured from when a scan
+     * was due, so a server that falls behind shows it in the percentiles.
+     */
+    private void runReplay(List<Scan> scans) throws InterruptedException {
+        if(scans.isEmpty()) {
+            System.out.println("Nothing to replay");
+            return;
+        }
+        System.out.println("Replaying " + scans.size() + " scans over " + scans.get(scans.size() - 1).offsetMillis() / 1000 + "s");
+
+        // Every kiosk name in the record table is played by one of the harness kiosks
+        Map<String, String> kioskTokens = new HashMap<>();
+        ExecutorService senders = Executors.newFixedThreadPool(tokens.size());
+        long start = System.nanoTime();
+        for(Scan scan : scans) {
+            String token = kioskTokens.computeIfAbsent(String.valueOf(scan.kioskName()),
+                    name -> tokens.get(kioskTokens.size() % tokens.size()));
+            long due = start + TimeUnit.MILLISECONDS.toNanos(scan.offsetMillis());
+            sleepUntil(due);
+            senders.execute(() -> checkIn(token, String.valueOf(scan.kioskName()), scan.studentId(), due));
+        }
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private List<Scan> readScans(EmbeddedDatabase db) throws Exception {
+        double speed = doubleOption("replay-speed", 10);
+        long maxGap = (long) (doubleOption("replay-max-gap-s", 5) * 1000);
+        String url = options.get("replay-url");
+        List<Scan> scans = new ArrayList<>();
+        try(Connection con = url == null ? db.connect()
+                : DriverManager.getConnection(url, option("replay-user", "root"), option("replay-password", ""));
+            Statement st = con.createStatement();
+            ResultSet rs = st.executeQuery("SELECT id, kiosk_name, scanned_at, date FROM record ORDER BY num")) {
+            long previous = Long.MIN_VALUE;
+            long offset = 0;
+            while(rs.next()) {
+                Long time = scanTime(rs.getTimestamp(3), rs.getString(4));
+                if(time == null) {
+                    continue;
+                }
+                if(previous != Long.MIN_VALUE) {
+                    // Nights and weekends are squeezed down to the longest gap
+                    offset += Math.min(Math.max(time - previous, 0) / speed, maxGap);
+                }
+                previous = time;
+                scans.add(new Scan(offset, rs.getInt(1), rs.getString(2)));
+            }
+        }
+        return scans;
+    }
+
+    /**
+     * Returns when a record was scanned, from scanned_at or the older date column
+     */
+    private static Long scanTime(Timestamp scannedAt, String date) {
+        if(scannedAt != null) {
+            return scannedAt.getTime();
+        }
+        if(date == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(date, Records.DATE_FORMAT).toInstant().toEpochMilli();
+        } catch(DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private void checkIn(String token, String kioskName, int studentId, long since) {
+        URI uri = URI.create("http://localhost:" + port + "/checkin?access_token=" + token + "&kiosk_name="
+                + URLEncoder.encode(kioskName, StandardCharsets.UTF_8) + "&student_id=" + studentId);
+        int status;
+        try {
+            status = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch(Exception e) {
+            status = Latencies.NO_RESPONSE;
+        }
+        checkins.record(System.nanoTime() - since, status);
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        long remaining;
+        while((remaining = nanoTime - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void report(double seconds, long messages, Map<String, Long> before, Map<String, Long> after) {
+        System.out.println();
+        System.out.printf("Ran for %.1fs%n", seconds);
+        System.out.println(Latencies.header());
+        System.out.println(checkins.report(seconds));
+        System.out.println(listRecords.report(seconds));
+        System.out.println("/liveRecords messages received: " + messages);
+
+        int count = checkins.getCount();
+        if(count == 0) {
+            return;
+        }
+        System.out.println();
+        System.out.println("Database statements per check in" + (listRecords.getCount() > 0
+                ? ", including the /listRecords polls (set --dashboard-poll-ms=0 to leave them out)" : "") + ":");
+        for(String name : List.of("Questions", "Com_select", "Com_insert", "Com_update", "Com_commit")) {
+            long delta = after.getOrDefault(name, 0L) - before.getOrDefault(name, 0L);
+            System.out.printf("  %-10s %8.3f%n", name, (double) delta / count);
+        }
+    }
+}
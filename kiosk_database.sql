@@ -53,7 +53,11 @@ CREATE TABLE `record` (
   `new_status` int DEFAULT NULL,
   `date` varchar(255) COLLATE utf8mb4_unicode_ci DEFAULT NULL,
   `kiosk_name` varchar(255) COLLATE utf8mb4_unicode_ci DEFAULT NULL,
-  PRIMARY KEY (`num`)
+  `scanned_at` datetime DEFAULT NULL,
+  PRIMARY KEY (`num`),
+  KEY `idx_record_scanned_at` (`scanned_at`),
+  KEY `idx_record_id_num` (`id`,`num`),
+  KEY `idx_record_kiosk_num` (`kiosk_name`,`num`)
 ) ENGINE=InnoDB AUTO_INCREMENT=458 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
@@ -63,7 +67,7 @@ CREATE TABLE `record` (
 
 LOCK TABLES `record` WRITE;
 /*!40000 ALTER TABLE `record` DISABLE KEYS */;
-INSERT INTO `record` VALUES (452,67144,0,1,'Sat Sep 30 18:58:45 EDT 2023','Hartshorn Kiosk 3'),(453,67144,1,1,'Sat Nov 18 18:27:13 EST 2023','High School Kiosk'),(454,67144,1,1,'Sat Nov 18 18:30:21 EST 2023','High School Kiosk'),(455,67144,1,1,'Sat Nov 18 18:30:54 EST 2023','High School Kiosk'),(456,67144,1,0,'Sat Nov 18 18:32:11 EST 2023','High School Kiosk'),(457,67144,0,1,'Sat Nov 18 18:32:14 EST 2023','High School Kiosk');
+INSERT INTO `record` VALUES (452,67144,0,1,'Sat Sep 30 18:58:45 EDT 2023','Hartshorn Kiosk 3','2023-09-30 18:58:45'),(453,67144,1,1,'Sat Nov 18 18:27:13 EST 2023','High School Kiosk','2023-11-18 18:27:13'),(454,67144,1,1,'Sat Nov 18 18:30:21 EST 2023','High School Kiosk','2023-11-18 18:30:21'),(455,67144,1,1,'Sat Nov 18 18:30:54 EST 2023','High School Kiosk','2023-11-18 18:30:54'),(456,67144,1,0,'Sat Nov 18 18:32:11 EST 2023','High School Kiosk','2023-11-18 18:32:11'),(457,67144,0,1,'Sat Nov 18 18:32:14 EST 2023','High School Kiosk','2023-11-18 18:32:14');
 /*!40000 ALTER TABLE `record` ENABLE KEYS */;
 UNLOCK TABLES;
 
@@ -97,6 +101,23 @@ INSERT INTO `relations` VALUES ('High School Kiosk',2,4,-1,8,15,19,30),('High Sc
 /*!40000 ALTER TABLE `relations` ENABLE KEYS */;
 UNLOCK TABLES;
 
+--
+-- Table structure for table `relation_windows`
+--
+
+DROP TABLE IF EXISTS `relation_windows`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!50503 SET character_set_client = utf8mb4 */;
+CREATE TABLE `relation_windows` (
+  `access_level` int NOT NULL,
+  `start_hour` int DEFAULT NULL,
+  `start_minute` int DEFAULT NULL,
+  `end_hour` int DEFAULT NULL,
+  `end_minute` int DEFAULT NULL,
+  KEY `idx_relation_windows_level` (`access_level`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
 --
 -- Table structure for table `students`
 --
@@ -0,0 +1,150 @@
+package org.millburn.kioskserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.web.socket.BinaryMessage;
+
+/**
+ * Encodes records for a dashboard that asked for the binary format of /liveRecords. One encoder
+ * belongs to one session, since the format remembers what was already sent to it.
+ * <p>
+ * Every frame starts with its type, 1 for a snapshot or 2 for a single record. A snapshot is
+ * followed by the number of records and then the records, newest first, and resets the state of
+ * the session, which starts from a num of 0 and an empty kiosk dictionary. A record is:
+ * <ul>
+ *     <li>num, as the difference from the num of the record sent before it</li>
+ *     <li>id, prev_status and new_status</li>
+ *     <li>the time, in seconds since the epoch, 0 if it is unknown</li>
+ *     <li>the kiosk, as 0 and a name that isn't kept, 1 and a name to add to the end of the
+ *     dictionary, or 2 + its index in the dictionary</li>
+ * </ul>
+ * Numbers are zigzag varints like in protobuf, and names are their UTF-8 length as a varint
+ * followed by the bytes.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class BinaryRecordEncoder {
+    /**
+     * The websocket subprotocol a dashboard asks for to get this format
+     */
+    public static final String PROTOCOL = "kiosk-records-binary";
+    public static final byte SNAPSHOT = 1;
+    public static final byte RECORD = 2;
+    /**
+     * Kiosk names come from the kiosks, so past this many the rest are sent in full every time
+     */
+    private static final int MAX_KIOSK_NAMES = 1024;
+    private static final int LITERAL_NAME = 0;
+    private static final int NEW_NAME = 1;
+    private static final int DICTIONARY_OFFSET = 2;
+
+    /**
+     * The last date that was parsed, since a record is encoded once for every session in a row
+     */
+    private static volatile ParsedDate lastDate = new ParsedDate(null, 0);
+
+    private final Map<String, Integer> kioskNames = new HashMap<>();
+    private int lastNumber;
+
+    /**
+     * Encodes the records a dashboard is shown from scratch
+     *
+     * @param records the most recent records, newest first
+     * @return the frame
+     */
+    public BinaryMessage snapshot(List<Records> records) {
+        this.kioskNames.clear();
+        this.lastNumber = 0;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + records.size() * 16);
+        out.write(SNAPSHOT);
+        writeVarint(out, records.size());
+        for(Records record : records) {
+            writeRecord(out, record);
+        }
+        return new BinaryMessage(out.toByteArray());
+    }
+
+    /**
+     * Encodes a record that was just logged
+     *
+     * @param record the record
+     * @return the frame
+     */
+    public BinaryMessage record(Records record) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24);
+        out.write(RECORD);
+        writeRecord(out, record);
+        return new BinaryMessage(out.toByteArray());
+    }
+
+    private void writeRecord(ByteArrayOutputStream out, Records record) {
+        writeSigned(out, record.number() - this.lastNumber);
+        this.lastNumber = record.number();
+        writeSigned(out, record.id());
+        writeSigned(out, record.prev_status());
+        writeSigned(out, record.new_status());
+        writeSigned(out, epochSecond(record.date()));
+
+        String kioskName = record.kiosk_name() == null ? "" : record.kiosk_name();
+        Integer index = this.kioskNames.get(kioskName);
+        if(index != null) {
+            writeVarint(out, DICTIONARY_OFFSET + index);
+        } else if(this.kioskNames.size() < MAX_KIOSK_NAMES) {
+            this.kioskNames.put(kioskName, this.kioskNames.size());
+            writeVarint(out, NEW_NAME);
+            writeString(out, kioskName);
+        } else {
+            writeVarint(out, LITERAL_NAME);
+            writeString(out, kioskName);
+        }
+    }
+
+    /**
+     * Reads a date written by {@link Records#DATE_FORMAT} as seconds since the epoch
+     *
+     * @return the seconds, or 0 if the date can't be read
+     */
+    static long epochSecond(String date) {
+        ParsedDate last = lastDate;
+        if(date == null) {
+            return 0;
+        }
+        if(date.equals(last.date())) {
+            return last.epochSecond();
+        }
+        long epochSecond;
+        try {
+            epochSecond = ZonedDateTime.parse(date, Records.DATE_FORMAT).toEpochSecond();
+        } catch(DateTimeParseException e) {
+            epochSecond = 0;
+        }
+        lastDate = new ParsedDate(date, epochSecond);
+        return epochSecond;
+    }
+
+    private static void writeSigned(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private record ParsedDate(String date, long epochSecond) {
+    }
+}
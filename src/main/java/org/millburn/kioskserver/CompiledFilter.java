@@ -0,0 +1,50 @@
+package org.millburn.kioskserver;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A WHERE clause with ? placeholders, and the values that go into them. Filters with the same
+ * columns and comparators always produce the same clause, so the database and the JDBC driver can
+ * reuse one prepared statement no matter what values are being filtered on.
+ *
+ * @param where  the WHERE clause, or a single space if there are no filters
+ * @param params the values for the placeholders, in order
+ * @author Alex Kolodkin, Keming Fei
+ */
+public record CompiledFilter(String where, Object[] params) {
+    /**
+     * Every clause built so far by the shape of its filters
+     */
+    private static final Map<String, String> TEMPLATES = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cached clause for a shape of filters, building it the first time
+     *
+     * @param shape   identifies the table, columns and comparators of the filters
+     * @param builder builds the clause if it isn't cached yet
+     * @return the clause
+     */
+    public static String template(String shape, Supplier<String> builder) {
+        String where = TEMPLATES.get(shape);
+        if (where == null) {
+            where = TEMPLATES.computeIfAbsent(shape, s -> builder.get());
+        }
+        return where;
+    }
+
+    /**
+     * Returns the filter values followed by more values, for placeholders that come after the WHERE
+     * clause such as LIMIT and OFFSET
+     *
+     * @param extra the values to add to the end
+     * @return all the values
+     */
+    public Object[] paramsWith(Object... extra) {
+        Object[] all = Arrays.copyOf(params, params.length + extra.length);
+        System.arraycopy(extra, 0, all, params.length, extra.length);
+        return all;
+    }
+}
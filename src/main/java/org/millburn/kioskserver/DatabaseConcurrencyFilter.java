@@ -0,0 +1,96 @@
+package org.millburn.kioskserver;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Limits how many requests can use the database at once to the size of the connection pool. With
+ * virtual threads there is no request thread limit anymore, so without this every request would
+ * just end up waiting inside the connection pool instead.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class DatabaseConcurrencyFilter extends OncePerRequestFilter {
+    private static final Logger LOG = LogManager.getLogger(DatabaseConcurrencyFilter.class);
+
+    private final Semaphore permits;
+    /**
+     * The longest a request waits for a connection before it is turned away
+     */
+    private final long timeoutMs;
+
+    public DatabaseConcurrencyFilter(int maxConcurrent, long timeoutMs) {
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        try {
+            if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Too many database requests, rejecting " + request.getRequestURI());
+                response.sendError(503);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(503);
+            return;
+        }
+
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // A streamed response like /exportRecords keeps its connection until the stream
+                // ends, long after the filter chain has returned
+                request.getAsyncContext().addListener(new ReleaseOnComplete());
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Gives the permit of an async request back once the request is done, however it ended
+     */
+    private class ReleaseOnComplete implements AsyncListener {
+        @Override
+        public void onComplete(AsyncEvent event) {
+            permits.release();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    /**
+     * Returns how many more requests can use the database right now
+     */
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+}
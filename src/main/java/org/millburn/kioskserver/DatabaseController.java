@@ -4,21 +4,30 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.*;
+import java.util.stream.Collectors;
 
 import lombok.Getter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.millburn.kioskserver.kiosk.AccessToken;
+import org.millburn.kioskserver.kiosk.KioskWebSocketHandler;
+import org.millburn.kioskserver.student.RosterImporter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 /**
  * The main class to respond to database changes
@@ -42,6 +51,14 @@ public class DatabaseController {
     private int captcha = DEFAULT_CAPTCHA;
 
     private final LoadedMemory lm;
+    /**
+     * Replaces the students when new student IDs are uploaded
+     */
+    private final RosterImporter rosterImporter;
+    /**
+     * Streams records out for /exportRecords
+     */
+    private final RecordExporter recordExporter;
 
     private static final Logger LOG = LogManager.getLogger(DatabaseController.class);
 
@@ -51,11 +68,14 @@ public class DatabaseController {
      * @param jt the object that will make using JDBC easier for us
      */
     @Autowired
-    public DatabaseController(JdbcTemplate jt, LoadedMemory lm) {
+    public DatabaseController(JdbcTemplate jt, LoadedMemory lm, RosterImporter rosterImporter,
+                              RecordExporter recordExporter) {
         // Ensure jt is not null
         Assert.notNull(jt, "JdbcTemplate must not be null");
         this.jt = jt;
         this.lm = lm;
+        this.rosterImporter = rosterImporter;
+        this.recordExporter = recordExporter;
     }
 
     /**
@@ -69,13 +89,14 @@ public class DatabaseController {
     @CrossOrigin(origins = "http://localhost:3000")
     public ResponseEntity<String> removeKiosk(@RequestParam(value = "token") String token) {
         // Deletes token from memory if it exists
-        if (!this.lm.getAccessTokens().removeToken(token)) {
+        if (!this.lm.removeToken(token)) {
             // Token does not exist
             return new ResponseEntity<>(HttpStatusCode.valueOf(422));
         }
 
         // Deletes the token from the database
         jt.update("DELETE FROM access_tokens WHERE access_token='?';", token);
+        KioskWebSocketHandler.pushTokenState(token, "removed");
         return new ResponseEntity<>("Successfully Deleted the Token", HttpStatusCode.valueOf(200));
     }
 
@@ -101,10 +122,16 @@ public class DatabaseController {
         if (kioskToken.getAccess() < 0) {
             return new ResponseEntity<>("This token is already disabled!", HttpStatusCode.valueOf(200));
         }
-        kioskToken.setAccess(-kioskToken.getAccess());
+        kioskToken = this.lm.setTokenDisabled(token, true);
+        if (kioskToken == null) {
+            // Removed in the meantime
+            return new ResponseEntity<>(HttpStatusCode.valueOf(422));
+        }
 
         // Update database value of token
         jt.update("UPDATE `access_tokens` SET `access` = '?' WHERE (`access_token` = '?');", kioskToken.getAccess(), token);
+        // Lets connected kiosks know to disable themselves
+        KioskWebSocketHandler.pushTokenState(token, "disabled");
         return new ResponseEntity<>("Successfully Disabled the Token", HttpStatusCode.valueOf(200));
     }
 
@@ -130,10 +157,15 @@ public class DatabaseController {
         if (kioskToken.getAccess() > 0) {
             return new ResponseEntity<>("This token is already enabled!", HttpStatusCode.valueOf(200));
         }
-        kioskToken.setAccess(-kioskToken.getAccess());
+        kioskToken = this.lm.setTokenDisabled(token, false);
+        if (kioskToken == null) {
+            // Removed in the meantime
+            return new ResponseEntity<>(HttpStatusCode.valueOf(422));
+        }
 
         // Update database value of token
         jt.update("UPDATE `access_tokens` SET `access` = '?' WHERE (`access_token` = '?');", kioskToken.getAccess(), token);
+        KioskWebSocketHandler.pushTokenState(token, "enabled");
 
         return new ResponseEntity<>("Successfully Enabled the Token", HttpStatusCode.valueOf(200));
     }
@@ -167,14 +199,14 @@ public class DatabaseController {
         jt.update("INSERT INTO `access_tokens` (`access_token`, `access`) VALUES ('?', '?');", kioskID, accessLevel);
 
         // Adds the token to memory
-        this.lm.getAccessTokens().addToken(kioskID.toString(), accessLevel);
+        this.lm.addToken(kioskID.toString(), accessLevel);
         return new ResponseEntity<>("New Kiosk Token: " + kioskID, HttpStatusCode.valueOf(200));
     }
 
     /**
      * /loadIDs?path=...&confirmation=...
      * <p>
-     * Bulk loads all the student ids from file into the database
+     * Bulk loads all the student ids from a file on the server into the database
      *
      * @param path         the path of the (.csv) file from which the student ids will be extracted
      * @param confirmation the captcha required to confirm the change of student ids
@@ -185,16 +217,70 @@ public class DatabaseController {
     public ResponseEntity<String> loadIDs(@RequestParam(value = "path") String path,
                                           @RequestParam(value = "confirmation", required = false, defaultValue = ""
                                                   + DEFAULT_CAPTCHA) String confirmation) {
-        // Gets the file and makes sure that it is valid
-        BufferedReader br;
+        // Makes sure that the file is valid
+        File file = new File(path);
+        if (!file.canRead()) {
+            return new ResponseEntity<>(HttpStatusCode.valueOf(422));
+        }
+
+        ResponseEntity<String> captchaResponse = checkCaptcha(confirmation);
+        if (captchaResponse != null) {
+            return captchaResponse;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            return importIDs(br);
+        } catch (IOException e) {
+            return new ResponseEntity<>(HttpStatusCode.valueOf(500));
+        }
+    }
+
+    /**
+     * POST /loadIDs?confirmation=...
+     * <p>
+     * Bulk loads all the student ids from the (.csv) file sent as the request body into the database
+     *
+     * @param confirmation the captcha required to confirm the change of student ids
+     * @param body         the contents of the (.csv) file
+     * @return a text response telling the user what to do and what the server is doing
+     */
+    @PostMapping("/loadIDs")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<String> uploadIDs(@RequestParam(value = "confirmation", required = false, defaultValue = ""
+                                                    + DEFAULT_CAPTCHA) String confirmation,
+                                            Reader body) {
+        ResponseEntity<String> captchaResponse = checkCaptcha(confirmation);
+        if (captchaResponse != null) {
+            return captchaResponse;
+        }
+
         try {
-            File file = new File(path);
-            FileReader fr = new FileReader(file);
-            br = new BufferedReader(fr);
+            return importIDs(body);
         } catch (IOException e) {
-            return new ResponseEntity<>(HttpStatusCode.valueOf(422));
+            return new ResponseEntity<>(HttpStatusCode.valueOf(500));
         }
+    }
+
+    /**
+     * /loadIDs/progress
+     * <p>
+     * Reports how far along the current or last student id upload is
+     *
+     * @return a JSON with the state and row counts of the upload
+     */
+    @GetMapping(value = "/loadIDs/progress", produces = "application/json")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<String> loadIDsProgress() {
+        return new ResponseEntity<>(rosterImporter.getProgress(), HttpStatusCode.valueOf(200));
+    }
 
+    /**
+     * Walks the user through the captcha before any student ids are replaced
+     *
+     * @param confirmation the captcha the user entered
+     * @return the response to send back, or null if the captcha was correct
+     */
+    private ResponseEntity<String> checkCaptcha(String confirmation) {
         // Checks if there is a current captcha
         if (captcha == DEFAULT_CAPTCHA) {
             // Generates a random number between 10000 and 99999 (5 numbers long)
@@ -218,70 +304,89 @@ public class DatabaseController {
             return new ResponseEntity<>(HttpStatusCode.valueOf(422));
         }
 
-        // Upload new student IDs from given file to the database
-        if (enteredCaptcha == captcha) {
-            // Clears the database of students
-            jt.execute("DROP TABLE students;");
-            jt.execute("CREATE TABLE students ("
-                    + "id int,"
-                    + "Name varchar(255),"
-                    + "privilege_type int,"
-                    + "status int,"
-                    + "PRIMARY KEY (id)"
-                    + ");");
-
-            // Reads in new students from file
-            try {
-                String line;
-                String[] tempArr;
-                while ((line = br.readLine()) != null) {
-                    tempArr = line.split(",");
-                    if (Objects.equals(tempArr[0], "Student #")) {
-                        continue;
-                    }
-
-                    jt.update("INSERT INTO `students` (`id`, `Name`, `privilege_type`, `status`) VALUES ('?', '?', '?', '1');", tempArr[0], tempArr[2] + " " + tempArr[1], tempArr[3]);
-                }
-                br.close();
-            } catch (IOException e) {
-                return new ResponseEntity<>(HttpStatusCode.valueOf(500));
-            }
+        // Reset the captcha if wrong captcha entered.
+        if (enteredCaptcha != captcha) {
             captcha = DEFAULT_CAPTCHA;
-            return new ResponseEntity<>("Resetting database and uploading new IDs.",
+            return new ResponseEntity<>("Incorrect captcha! Resetting captcha.",
                     HttpStatusCode.valueOf(200));
         }
 
-        // Reset the captcha if wrong captcha entered.
         captcha = DEFAULT_CAPTCHA;
-        return new ResponseEntity<>("Incorrect captcha! Resetting captcha.",
-                HttpStatusCode.valueOf(200));
+        return null;
+    }
+
+    /**
+     * Uploads new student IDs into the database, the current students stay in place until the new
+     * ones are fully loaded
+     *
+     * @param reader the (.csv) file
+     * @return a JSON with the result of the upload
+     */
+    private ResponseEntity<String> importIDs(Reader reader) throws IOException {
+        if (!rosterImporter.importRoster(reader)) {
+            return new ResponseEntity<>("{\"error\":\"An upload is already running\"}", HttpStatusCode.valueOf(409));
+        }
+        if (rosterImporter.getState() != RosterImporter.State.DONE) {
+            return new ResponseEntity<>(rosterImporter.getProgress(), HttpStatusCode.valueOf(422));
+        }
+        return new ResponseEntity<>(rosterImporter.getProgress(), HttpStatusCode.valueOf(200));
     }
 
+    /**
+     * /records?filterBy=...&filterValue=...
+     * <p>
+     * Counts the records matching the filters. Counts with no filters or a single equals filter on
+     * id, prev_status, new_status or kiosk_name come from memory, anything else asks the database.
+     */
     @GetMapping(value = "/records", produces = "application/json")
     @CrossOrigin(origins = "http://localhost:3000")
-    public ResponseEntity<String> records(@RequestParam(required = false, defaultValue = "") List<String> filterBy, @RequestParam(required = false, defaultValue = "") List<String> filterValue) {
+    public ResponseEntity<String> records(@RequestParam(required = false, defaultValue = "") List<String> filterBy,
+                                          @RequestParam(required = false, defaultValue = "") List<String> filterValue,
+                                          @RequestParam(required = false, defaultValue = "") List<String> filterComparator) {
         // returns count
         if (filterBy.size() != filterValue.size()) {
             LOG.error("FilterBy and FilterValue size mismatch");
             return new ResponseEntity<>("{\"error\":\"FilterBy and FilterValue size mismatch\"}", HttpStatusCode.valueOf(400));
         }
-        Records.Filter[] filters = Records.Filter.parseFilters(filterBy.toArray(new String[0]), filterValue.toArray(new String[0]), new String[filterBy.size()]);
+        if (filterComparator.size() != filterValue.size()) {
+            // fill end with equals
+            for (int i = filterComparator.size(); i < filterValue.size(); i++) {
+                filterComparator.add("equals");
+            }
+        }
+        Records.Filter[] filters = Records.Filter.parseFilters(filterBy.toArray(new String[0]), filterValue.toArray(new String[0]), filterComparator.toArray(new String[0]));
+
+        Long cached = this.lm.getRecordCounters().count(filters);
+        if (cached != null) {
+            return new ResponseEntity<>("{\"count\":" + cached + "}", HttpStatusCode.valueOf(200));
+        }
+
         //noinspection SqlResolve (SQL is valid, IntelliJ just doesn't properly parse the concatenation of the SQL statements and returned string from the function)
-        String sql = "SELECT COUNT(*) FROM record" + Records.Filter.generateSQL(filters);
+        CompiledFilter compiled = Records.Filter.compile(filters);
+        String sql = "SELECT COUNT(*) FROM record" + compiled.where();
         //noinspection SqlSourceToSinkFlow
-        int count = jt.queryForObject(sql, Integer.class);
+        int count = jt.queryForObject(sql, Integer.class, compiled.params());
         return new ResponseEntity<>("{\"count\":" + count + "}", HttpStatusCode.valueOf(200));
     }
 
+    /**
+     * /listRecords?pageSize=...&after=...
+     * <p>
+     * Lists records newest first. Pages can be picked with page, or with the after/before cursors
+     * from the X-Cursor-After/X-Cursor-Before headers of the previous response, which stay fast no
+     * matter how deep the page is.
+     */
     @GetMapping(value = "/listRecords", produces = "application/json")
-    @CrossOrigin(origins = "http://localhost:3000")
+    @CrossOrigin(origins = "http://localhost:3000", exposedHeaders = {PageCursor.AFTER_HEADER, PageCursor.BEFORE_HEADER})
 //    @CrossOrigin(origins = "*")
     public ResponseEntity<String> listRecords(
             @RequestParam(required = false, defaultValue = "0") String page,
             @RequestParam(required = false, defaultValue = "5") String pageSize,
             @RequestParam(required = false, defaultValue = "") List<String> filterBy,
             @RequestParam(required = false, defaultValue = "") List<String> filterValue,
-            @RequestParam(required = false, defaultValue = "") List<String> filterComparator
+            @RequestParam(required = false, defaultValue = "") List<String> filterComparator,
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) String before
     ) {
         int pageInt;
         int pageSizeInt;
@@ -307,13 +412,52 @@ public class DatabaseController {
             }
             LOG.warn("FilterComparator and FilterValue size mismatch, filling with equals");
         }
+        Integer afterNum;
+        Integer beforeNum;
+        try {
+            afterNum = PageCursor.decode(after);
+            beforeNum = PageCursor.decode(before);
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid cursor: " + after + ", " + before);
+            return new ResponseEntity<>("{\"error\":\"Invalid cursor\"}", HttpStatusCode.valueOf(400));
+        }
+        if (afterNum != null && beforeNum != null) {
+            LOG.error("Both after and before cursors given");
+            return new ResponseEntity<>("{\"error\":\"Only one of after and before can be given\"}", HttpStatusCode.valueOf(400));
+        }
         Records.Filter[] filters = Records.Filter.parseFilters(filterBy.toArray(new String[0]), filterValue.toArray(new String[0]), filterComparator.toArray(new String[0]));
 
+        // The unfiltered first page is usually in memory already
+        if (pageInt == 0 && filters.length == 0 && afterNum == null && beforeNum == null
+                && pageSizeInt <= RecentRecords.CAPACITY) {
+            List<Records> recent = this.lm.getRecentRecords().latestIfComplete(pageSizeInt);
+            if (recent != null) {
+                return recordsResponse(recent);
+            }
+        }
+
+        // A cursor seeks straight to its page through the primary key instead of skipping rows
+        String order = "DESC";
+        boolean seek = false;
+        if (afterNum != null || beforeNum != null) {
+            filters = Arrays.copyOf(filters, filters.length + 1);
+            if (afterNum != null) {
+                filters[filters.length - 1] = new Records.Filter(Records.FilterType.NUM, afterNum, Records.FilterComparator.LESS_THAN);
+            } else {
+                filters[filters.length - 1] = new Records.Filter(Records.FilterType.NUM, beforeNum, Records.FilterComparator.GREATER_THAN);
+                // Walks up from the cursor, the page is flipped back to newest first below
+                order = "ASC";
+            }
+            seek = true;
+        }
+
         //noinspection SqlResolve (SQL is valid, IntelliJ just doesn't properly parse the concatenation of the SQL statements and returned string from the function)
-        String sql = "SELECT * FROM record" + Records.Filter.generateSQL(filters) + "ORDER BY num DESC LIMIT " + pageSizeInt + " OFFSET " + (pageInt * pageSizeInt);
+        CompiledFilter compiled = Records.Filter.compile(filters);
+        String sql = "SELECT * FROM record" + compiled.where() + "ORDER BY num " + order + (seek ? " LIMIT ?" : " LIMIT ? OFFSET ?");
+        Object[] params = seek ? compiled.paramsWith(pageSizeInt) : compiled.paramsWith(pageSizeInt, pageInt * pageSizeInt);
 
         //noinspection SqlSourceToSinkFlow
-        List<Map<String, Object>> rows = jt.queryForList(sql);
+        List<Map<String, Object>> rows = jt.queryForList(sql, params);
         List<Records> records = rows.stream().map(row -> new Records(
                 (int) row.get("num"),
                 (int) row.get("id"),
@@ -321,11 +465,79 @@ public class DatabaseController {
                 (int) row.get("new_status"),
                 row.get("date").toString(),
                 row.get("kiosk_name").toString()
-        )).toList();
+        )).collect(Collectors.toCollection(ArrayList::new));
+        if (beforeNum != null) {
+            Collections.reverse(records);
+        }
 
-        return new ResponseEntity<>(records.toString(), HttpStatusCode.valueOf(200));
+        return recordsResponse(records);
 
         // return temporary error code
 //        return new ResponseEntity<>("{\"error\":\"Not implemented\"}", HttpStatusCode.valueOf(501));
     }
-}
\ No newline at end of file
+
+    /**
+     * /exportRecords?format=...&gzip=...
+     * <p>
+     * Streams every record matching the filters, oldest first, as CSV or as one JSON object per line
+     *
+     * @param format csv or ndjson
+     * @param gzip   whether to gzip the response
+     * @return the records as they are read from the database
+     */
+    @GetMapping("/exportRecords")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<StreamingResponseBody> exportRecords(
+            @RequestParam(required = false, defaultValue = "csv") String format,
+            @RequestParam(required = false, defaultValue = "false") boolean gzip,
+            @RequestParam(required = false, defaultValue = "") List<String> filterBy,
+            @RequestParam(required = false, defaultValue = "") List<String> filterValue,
+            @RequestParam(required = false, defaultValue = "") List<String> filterComparator
+    ) {
+        RecordExporter.Format exportFormat;
+        try {
+            exportFormat = RecordExporter.Format.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid export format: " + format);
+            return new ResponseEntity<>(HttpStatusCode.valueOf(400));
+        }
+        if (filterBy.size() != filterValue.size()) {
+            LOG.error("FilterBy and FilterValue size mismatch");
+            return new ResponseEntity<>(HttpStatusCode.valueOf(400));
+        }
+        if (filterComparator.size() != filterValue.size()) {
+            // fill end with equals
+            for (int i = filterComparator.size(); i < filterValue.size(); i++) {
+                filterComparator.add("equals");
+            }
+        }
+        Records.Filter[] filters = Records.Filter.parseFilters(filterBy.toArray(new String[0]), filterValue.toArray(new String[0]), filterComparator.toArray(new String[0]));
+
+        HttpHeaders headers = new HttpHeaders();
+        if (exportFormat == RecordExporter.Format.CSV) {
+            headers.setContentType(MediaType.parseMediaType("text/csv"));
+            headers.setContentDisposition(ContentDisposition.attachment().filename("records.csv").build());
+        } else {
+            headers.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+            headers.setContentDisposition(ContentDisposition.attachment().filename("records.ndjson").build());
+        }
+        if (gzip) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+
+        StreamingResponseBody body = out -> recordExporter.export(filters, exportFormat, gzip, out);
+        return new ResponseEntity<>(body, headers, HttpStatusCode.valueOf(200));
+    }
+
+    /**
+     * Wraps a page of records in a response, with cursors pointing to the pages around it
+     */
+    private static ResponseEntity<String> recordsResponse(List<Records> records) {
+        if (records.isEmpty()) {
+            return new ResponseEntity<>(records.toString(), HttpStatusCode.valueOf(200));
+        }
+        return new ResponseEntity<>(records.toString(),
+                PageCursor.headers(records.get(0).number(), records.get(records.size() - 1).number()),
+                HttpStatusCode.valueOf(200));
+    }
+}
@@ -1,9 +1,14 @@
 package org.millburn.kioskserver;
 
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
 import lombok.Getter;
+import org.millburn.kioskserver.kiosk.AccessToken;
 import org.millburn.kioskserver.kiosk.AccessTokens;
 import org.millburn.kioskserver.relations.AccessRelationships;
+import org.millburn.kioskserver.student.StudentRoster;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.annotation.Scope;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
@@ -17,22 +22,137 @@ import org.springframework.util.Assert;
  */
 @Component
 @Scope("singleton")
+// Writes left over from the last shutdown are replayed first, so they are in what is loaded, and
+// the migrations have created the tables the relations are loaded from
+@DependsOn({"recordMigration", "writeBehindQueue"})
 public class LoadedMemory {
+    /**
+     * The kiosk tokens along with the relations they were loaded with. Changes build a new
+     * snapshot off to the side and swap it in, so check ins read it without locking and never see
+     * a reload half done. Writers are synchronized so that two changes can't lose one another.
+     */
+    private final AtomicReference<AccessTokens> access;
     @Getter
-    private final AccessRelationships accessRelations;
+    private volatile StudentRoster students;
     @Getter
-    private AccessTokens accessTokens;
+    private final RecentRecords recentRecords;
+    @Getter
+    private final RecordCounters recordCounters;
     private final JdbcTemplate jt;
 
     @Autowired
     public LoadedMemory(JdbcTemplate jt) {
         this.jt = jt;
         Assert.notNull(jt, "JdbcTemplate must not be null");
-        accessRelations = new AccessRelationships(this, this.jt);
-        accessTokens = new AccessTokens(accessRelations, this.jt);
+        access = new AtomicReference<>(new AccessTokens(new AccessRelationships(this.jt), this.jt));
+        students = new StudentRoster(this.jt);
+        recentRecords = new RecentRecords(this.jt);
+        recordCounters = new RecordCounters(this.jt);
+    }
+
+    public AccessTokens getAccessTokens() {
+        return access.get();
+    }
+
+    public AccessRelationships getAccessRelations() {
+        return access.get().getRelations();
+    }
+
+    /**
+     * Loads the relations and then the tokens from the database again
+     */
+    public synchronized void reloadAccess() {
+        access.set(new AccessTokens(new AccessRelationships(this.jt), this.jt));
+    }
+
+    public synchronized void reloadAccessTokens() {
+        access.set(new AccessTokens(getAccessRelations(), this.jt));
+    }
+
+    /**
+     * Replaces the relations with the ones in a file and loads them along with the tokens
+     *
+     * @param path the path to the file
+     * @return whether the upload was a success or not
+     */
+    public boolean uploadNewRelations(File path) {
+        if(!AccessRelationships.writeToDatabase(this.jt, path)) {
+            return false;
+        }
+        reloadAccess();
+        return true;
+    }
+
+    /**
+     * Adds a new token to the list of active tokens
+     *
+     * @param uuid        the token of the kiosk
+     * @param accessLevel the access level of the kiosk
+     * @return whether the token was added
+     */
+    public synchronized boolean addToken(String uuid, int accessLevel) {
+        AccessTokens tokens = access.get();
+        if(tokens.containsToken(uuid)) {
+            return false;
+        }
+        AccessTokens updated = tokens.withToken(uuid, accessLevel);
+        if(updated == null) {
+            return false;
+        }
+        access.set(updated);
+        return true;
+    }
+
+    /**
+     * Removes a token from the list of active tokens
+     *
+     * @param uuid the token of the kiosk
+     * @return whether the token was removed
+     */
+    public synchronized boolean removeToken(String uuid) {
+        AccessTokens tokens = access.get();
+        if(!tokens.containsToken(uuid)) {
+            return false;
+        }
+        access.set(tokens.withoutToken(uuid));
+        return true;
+    }
+
+    /**
+     * Disables or enables a token
+     *
+     * @param uuid     the token of the kiosk
+     * @param disabled whether the token should be disabled
+     * @return the token as it is now, or null if the token does not exist
+     */
+    public synchronized AccessToken setTokenDisabled(String uuid, boolean disabled) {
+        AccessTokens tokens = access.get();
+        AccessToken token = tokens.getTokenInfo(uuid);
+        if(token == null) {
+            return null;
+        }
+        int level = Math.abs(token.getAccess());
+        int updated = disabled ? -level : level;
+        if(updated != token.getAccess()) {
+            tokens = tokens.withToken(uuid, updated);
+            access.set(tokens);
+        }
+        return tokens.getTokenInfo(uuid);
     }
 
-    public void reloadAccessTokens() {
-        accessTokens = new AccessTokens(accessRelations, this.jt);
+    /**
+     * Replaces the students table and then loads the students again. The current roster is retired
+     * first, so that no status update queued for it is flushed into the new table. Whether the
+     * replacement worked or not, the students are loaded again from the database.
+     *
+     * @param replace replaces the students table
+     */
+    public void replaceStudents(Runnable replace) {
+        students.retire();
+        try {
+            replace.run();
+        } finally {
+            students = new StudentRoster(this.jt);
+        }
     }
 }
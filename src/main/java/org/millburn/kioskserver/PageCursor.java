@@ -0,0 +1,65 @@
+package org.millburn.kioskserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Builds and reads the opaque cursors used to page through records and students by key instead of
+ * by offset, so that every page costs the same no matter how deep it is
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public final class PageCursor {
+    /**
+     * The response header holding the cursor for the next (older) page
+     */
+    public static final String AFTER_HEADER = "X-Cursor-After";
+    /**
+     * The response header holding the cursor for the previous (newer) page
+     */
+    public static final String BEFORE_HEADER = "X-Cursor-Before";
+
+    private PageCursor() {
+    }
+
+    /**
+     * Turns a key into a cursor
+     *
+     * @param key the num of a record or the id of a student
+     * @return the cursor
+     */
+    public static String encode(int key) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(Integer.toString(key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Turns a cursor back into its key
+     *
+     * @param cursor the cursor, may be null or empty
+     * @return the key, or null if there is no cursor
+     * @throws IllegalArgumentException if the cursor is not one we made
+     */
+    public static Integer decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        return Integer.parseInt(key);
+    }
+
+    /**
+     * Creates the headers that point to the pages around a page
+     *
+     * @param firstKey the key of the first row on the page
+     * @param lastKey  the key of the last row on the page
+     * @return the headers
+     */
+    public static HttpHeaders headers(int firstKey, int lastKey) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(BEFORE_HEADER, encode(firstKey));
+        headers.set(AFTER_HEADER, encode(lastKey));
+        return headers;
+    }
+}
@@ -0,0 +1,108 @@
+package org.millburn.kioskserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+/**
+ * Keeps the most recent records in memory so that dashboards and the first page of records can be
+ * served without querying the database. Records are stored in a ring buffer at the slot given by
+ * their record number, so adding and reading never need a lock.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class RecentRecords {
+    /**
+     * How many records are kept, must be a power of two
+     */
+    public static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    private final AtomicReferenceArray<Records> buffer = new AtomicReferenceArray<>(CAPACITY);
+    /**
+     * The highest record number in the buffer
+     */
+    private final AtomicInteger latestNum = new AtomicInteger(0);
+    /**
+     * The highest record number in the database when the buffer was warmed. A missing number up
+     * to it is a gap in the table, every number after it is handed out by this server.
+     */
+    private final int loadedNum;
+
+    public RecentRecords(JdbcTemplate jt) {
+        // Warms the buffer with the newest records from the database
+        SqlRowSet rs = jt.queryForRowSet("SELECT num, id, prev_status, new_status, date, kiosk_name FROM record ORDER BY num DESC LIMIT " + CAPACITY);
+
+        while(rs.next()) {
+            add(new Records(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getString(5),
+                    rs.getString(6)));
+        }
+        this.loadedNum = latestNum.get();
+    }
+
+    /**
+     * Adds a newly logged record, replacing the record that is CAPACITY numbers older
+     *
+     * @param record the record that was logged
+     */
+    public void add(Records record) {
+        buffer.set(record.number() & MASK, record);
+        latestNum.accumulateAndGet(record.number(), Math::max);
+    }
+
+    /**
+     * Returns the newest records, newest first. Every record with a number within CAPACITY of the
+     * newest one is in the buffer, so fewer than count records are only returned when the table
+     * doesn't have that many records in that range.
+     *
+     * @param count how many records to return
+     * @return the newest records
+     */
+    public List<Records> latest(int count) {
+        return latest(latestNum.get(), count, false);
+    }
+
+    /**
+     * Reads the newest records from the buffer
+     *
+     * @param complete whether to give up with null on a number that is still being added
+     */
+    private List<Records> latest(int latest, int count, boolean complete) {
+        int oldest = Math.max(latest - CAPACITY + 1, 1);
+        List<Records> records = new ArrayList<>(Math.min(count, CAPACITY));
+        for(int num = latest; num >= oldest && records.size() < count; num--) {
+            Records record = buffer.get(num & MASK);
+            if(record != null && record.number() == num) {
+                records.add(record);
+            } else if(complete && num > loadedNum) {
+                // latestNum can be ahead of a lower number whose check in hasn't stored it yet
+                return null;
+            }
+            // Otherwise the number was never used, or was already overwritten
+        }
+        return records;
+    }
+
+    /**
+     * Returns the newest records only if they are exactly what the database would return, otherwise
+     * null so that the caller can fall back to querying the database
+     *
+     * @param count how many records to return
+     * @return the newest records, or null if the buffer can't answer
+     */
+    public List<Records> latestIfComplete(int count) {
+        int latest = latestNum.get();
+        List<Records> records = latest(latest, count, true);
+        if(records == null) {
+            return null;
+        }
+        // If the buffer reaches back to the first record number nothing older can exist
+        if(records.size() == count || latest - CAPACITY + 1 <= 1) {
+            return records;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,123 @@
+package org.millburn.kioskserver;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+/**
+ * Counts records by the columns dashboards filter on, so that common record counts don't need a
+ * COUNT(*) over the record table. The counts are loaded once from the database and then kept up to
+ * date as records are logged.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class RecordCounters {
+    private final LongAdder total = new LongAdder();
+    private final Map<Integer, LongAdder> byId = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> byPrevStatus = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> byNewStatus = new ConcurrentHashMap<>();
+    /**
+     * Keyed by {@link #kioskKey(String)} since MySQL compares kiosk names without case
+     */
+    private final Map<String, LongAdder> byKioskName = new ConcurrentHashMap<>();
+
+    public RecordCounters(JdbcTemplate jt) {
+        Long count = jt.queryForObject("SELECT COUNT(*) FROM record", Long.class);
+        total.add(count == null ? 0 : count);
+        seed(jt, "id", byId);
+        seed(jt, "prev_status", byPrevStatus);
+        seed(jt, "new_status", byNewStatus);
+
+        SqlRowSet rs = jt.queryForRowSet("SELECT kiosk_name, COUNT(*) FROM record GROUP BY kiosk_name");
+        while(rs.next()) {
+            String key = kioskKey(rs.getString(1));
+            if(key != null) {
+                byKioskName.computeIfAbsent(key, k -> new LongAdder()).add(rs.getLong(2));
+            }
+        }
+    }
+
+    private static void seed(JdbcTemplate jt, String column, Map<Integer, LongAdder> counters) {
+        SqlRowSet rs = jt.queryForRowSet("SELECT " + column + ", COUNT(*) FROM record WHERE " + column + " IS NOT NULL GROUP BY " + column);
+        while(rs.next()) {
+            counters.computeIfAbsent(rs.getInt(1), k -> new LongAdder()).add(rs.getLong(2));
+        }
+    }
+
+    /**
+     * Normalizes a kiosk name the way the record table's collation compares it
+     *
+     * @return the key, or null if the name can't be compared reliably in memory
+     */
+    private static String kioskKey(String kioskName) {
+        if(kioskName == null) {
+            return null;
+        }
+        for(int i = 0; i < kioskName.length(); i++) {
+            // Non ASCII names may be equal to other names under the collation, those go to the database
+            if(kioskName.charAt(i) > 127) {
+                return null;
+            }
+        }
+        return kioskName.stripTrailing().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Counts a newly logged record
+     *
+     * @param record the record that was logged
+     */
+    public void add(Records record) {
+        total.increment();
+        byId.computeIfAbsent(record.id(), k -> new LongAdder()).increment();
+        byPrevStatus.computeIfAbsent(record.prev_status(), k -> new LongAdder()).increment();
+        byNewStatus.computeIfAbsent(record.new_status(), k -> new LongAdder()).increment();
+        String key = kioskKey(record.kiosk_name());
+        if(key != null) {
+            byKioskName.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Counts the records matching a set of filters, if the counters can answer it. The counters can
+     * answer no filters at all, or a single equals filter on id, prev_status, new_status or
+     * kiosk_name.
+     *
+     * @param filters the filters, with ALL filters already removed
+     * @return the number of records, or null if the database has to be asked
+     */
+    public Long count(Records.Filter[] filters) {
+        if(filters.length == 0) {
+            return total.sum();
+        }
+        if(filters.length > 1) {
+            return null;
+        }
+
+        Records.Filter filter = filters[0];
+        if(filter.getComparator() != Records.FilterComparator.EQUALS) {
+            return null;
+        }
+        LongAdder counter;
+        switch(filter.getType()) {
+            case ID -> counter = byId.get((Integer) filter.getValue());
+            case PREV_STATUS -> counter = byPrevStatus.get((Integer) filter.getValue());
+            case NEW_STATUS -> counter = byNewStatus.get((Integer) filter.getValue());
+            case KIOSK_NAME -> {
+                String key = kioskKey((String) filter.getValue());
+                if(key == null) {
+                    return null;
+                }
+                counter = byKioskName.get(key);
+            }
+            default -> {
+                return null;
+            }
+        }
+
+        return counter == null ? 0 : counter.sum();
+    }
+}
@@ -0,0 +1,167 @@
+package org.millburn.kioskserver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+/**
+ * Streams filtered records straight from the database to an output stream, one row at a time, so
+ * that an export uses the same amount of memory no matter how many records it has
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+public class RecordExporter {
+    public enum Format {
+        CSV, NDJSON
+    }
+
+    /**
+     * The object that will make using JDBC easier for us
+     */
+    private final JdbcTemplate jt;
+
+    @Autowired
+    public RecordExporter(JdbcTemplate jt) {
+        Assert.notNull(jt, "JdbcTemplate must not be null");
+        this.jt = jt;
+    }
+
+    /**
+     * Writes every record matching the filters to the output stream, oldest first
+     *
+     * @param filters the filters
+     * @param format  CSV or one JSON object per line
+     * @param gzip    whether to gzip the output
+     * @param out     where the records are written
+     */
+    public void export(Records.Filter[] filters, Format format, boolean gzip, OutputStream out) throws IOException {
+        CompiledFilter compiled = Records.Filter.compile(filters);
+        //noinspection SqlResolve (SQL is valid, IntelliJ just doesn't properly parse the concatenation of the SQL statements and returned string from the function)
+        String sql = "SELECT num, id, prev_status, new_status, date, kiosk_name FROM record" + compiled.where() + "ORDER BY num";
+
+        OutputStream target = gzip ? new GZIPOutputStream(out, 8192) : out;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 64 * 1024);
+        if (format == Format.CSV) {
+            writer.write("num,id,prev_status,new_status,date,kiosk_name\n");
+        }
+
+        try {
+            //noinspection SqlSourceToSinkFlow
+            jt.query(con -> {
+                // A forward only statement with a fetch size of MIN_VALUE makes MySQL send rows one at a
+                // time instead of loading the whole result into memory
+                PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(Integer.MIN_VALUE);
+                Object[] params = compiled.params();
+                for (int i = 0; i < params.length; i++) {
+                    ps.setObject(i + 1, params[i]);
+                }
+                return ps;
+            }, (RowCallbackHandler) rs -> {
+                try {
+                    if (format == Format.CSV) {
+                        writeCsvRow(writer, rs);
+                    } else {
+                        writeJsonRow(writer, rs);
+                    }
+                } catch (IOException e) {
+                    // Usually means the client went away, which stops the query too
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        writer.flush();
+        if (target instanceof GZIPOutputStream gz) {
+            gz.finish();
+        }
+    }
+
+    private static void writeCsvRow(Writer writer, ResultSet rs) throws IOException, SQLException {
+        writer.write(Integer.toString(rs.getInt(1)));
+        writer.write(',');
+        writer.write(Integer.toString(rs.getInt(2)));
+        writer.write(',');
+        writer.write(Integer.toString(rs.getInt(3)));
+        writer.write(',');
+        writer.write(Integer.toString(rs.getInt(4)));
+        writer.write(',');
+        writeCsvString(writer, rs.getString(5));
+        writer.write(',');
+        writeCsvString(writer, rs.getString(6));
+        writer.write('\n');
+    }
+
+    private static void writeCsvString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        // Only quotes values that need it
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static void writeJsonRow(Writer writer, ResultSet rs) throws IOException, SQLException {
+        // Same fields as Records.toString
+        writer.write("{\"number\":");
+        writer.write(Integer.toString(rs.getInt(1)));
+        writer.write(",\"id\":");
+        writer.write(Integer.toString(rs.getInt(2)));
+        writer.write(",\"prev_status\":");
+        writer.write(Integer.toString(rs.getInt(3)));
+        writer.write(",\"new_status\":");
+        writer.write(Integer.toString(rs.getInt(4)));
+        writer.write(",\"time\":");
+        writeJsonString(writer, rs.getString(5));
+        writer.write(",\"kiosk_name\":");
+        writeJsonString(writer, rs.getString(6));
+        writer.write("}\n");
+    }
+
+    private static void writeJsonString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> writer.write("\\\"");
+                case '\\' -> writer.write("\\\\");
+                case '\n' -> writer.write("\\n");
+                case '\r' -> writer.write("\\r");
+                case '\t' -> writer.write("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                }
+            }
+        }
+        writer.write('"');
+    }
+}
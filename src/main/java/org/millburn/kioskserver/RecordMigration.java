@@ -0,0 +1,127 @@
+package org.millburn.kioskserver;
+
+import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.millburn.kioskserver.relations.AccessRelationships;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * Brings the database up to date when the server starts. The date column of record is a string,
+ * so a real scanned_at timestamp column is added next to it along with the indexes the record
+ * filters need, and existing records are filled in a chunk at a time on a background thread.
+ * relation_windows is created for databases from before it existed.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+public class RecordMigration {
+    /**
+     * How many records are filled in per transaction
+     */
+    private static final int BACKFILL_CHUNK_SIZE = 1000;
+    private static final Logger LOG = LogManager.getLogger(RecordMigration.class);
+
+    /**
+     * The object that will make using JDBC easier for us
+     */
+    private final JdbcTemplate jt;
+    private final TransactionTemplate tt;
+
+    @Autowired
+    public RecordMigration(JdbcTemplate jt, PlatformTransactionManager tm) {
+        Assert.notNull(jt, "JdbcTemplate must not be null");
+        this.jt = jt;
+        this.tt = new TransactionTemplate(tm);
+
+        if(!hasColumn("scanned_at")) {
+            LOG.info("Adding scanned_at to record");
+            jt.execute("ALTER TABLE record ADD COLUMN scanned_at datetime DEFAULT NULL;");
+        }
+        // Matches the common filters: a time range, a student's records and a kiosk's records
+        addIndex("idx_record_scanned_at", "scanned_at");
+        addIndex("idx_record_id_num", "id, num");
+        addIndex("idx_record_kiosk_num", "kiosk_name, num");
+        AccessRelationships.createWindowsTable(jt);
+
+        Thread backfill = new Thread(this::backfill, "record-backfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+
+    private boolean hasColumn(String column) {
+        Integer count = jt.queryForObject("SELECT COUNT(*) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'record' AND COLUMN_NAME = ?", Integer.class, column);
+        return count != null && count > 0;
+    }
+
+    private void addIndex(String name, String columns) {
+        Integer count = jt.queryForObject("SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'record' AND INDEX_NAME = ?", Integer.class, name);
+        if(count == null || count == 0) {
+            LOG.info("Adding index " + name + " to record");
+            jt.execute("ALTER TABLE record ADD INDEX " + name + " (" + columns + ");");
+        }
+    }
+
+    /**
+     * Fills scanned_at for every record written before the column existed
+     */
+    private void backfill() {
+        int lastNum = 0;
+        int filled = 0;
+        try {
+            while(true) {
+                SqlRowSet rs = jt.queryForRowSet("SELECT num, date FROM record WHERE scanned_at IS NULL AND num > ? ORDER BY num LIMIT " + BACKFILL_CHUNK_SIZE, lastNum);
+                List<Object[]> updates = new ArrayList<>(BACKFILL_CHUNK_SIZE);
+                int rows = 0;
+                while(rs.next()) {
+                    rows++;
+                    lastNum = rs.getInt(1);
+                    Timestamp scannedAt = parseDate(rs.getString(2));
+                    // Records with a date we can't read are left empty and skipped
+                    if(scannedAt != null) {
+                        updates.add(new Object[] {scannedAt, lastNum});
+                    }
+                }
+                if(rows == 0) {
+                    break;
+                }
+                if(!updates.isEmpty()) {
+                    tt.executeWithoutResult(tx -> jt.batchUpdate("UPDATE record SET scanned_at = ? WHERE num = ?;", updates));
+                    filled += updates.size();
+                }
+            }
+        } catch(RuntimeException e) {
+            LOG.error("Failed to fill scanned_at after " + filled + " records", e);
+            return;
+        }
+        if(filled > 0) {
+            LOG.info("Filled scanned_at for " + filled + " records");
+        }
+    }
+
+    /**
+     * Reads a date written by {@link Records#DATE_FORMAT} as a local timestamp
+     */
+    private static Timestamp parseDate(String date) {
+        if(date == null) {
+            return null;
+        }
+        try {
+            ZonedDateTime time = ZonedDateTime.parse(date, Records.DATE_FORMAT);
+            return Timestamp.valueOf(time.withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime());
+        } catch(DateTimeParseException e) {
+            return null;
+        }
+    }
+}
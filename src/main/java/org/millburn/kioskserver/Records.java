@@ -4,10 +4,17 @@ import lombok.Getter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 public record Records(int number, int id, int prev_status, int new_status, String date, String kiosk_name) {
+    /**
+     * The format of the date column
+     */
+    public static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy");
 
     @Override
     public String toString() {
@@ -16,7 +23,7 @@ public record Records(int number, int id, int prev_status, int new_status, Strin
     }
 
     public enum FilterType {
-        ALL, NUM, ID, PREV_STATUS, NEW_STATUS, DATE, KIOSK_NAME
+        ALL, NUM, ID, PREV_STATUS, NEW_STATUS, DATE, KIOSK_NAME, SCANNED_AT
     }
     public enum FilterComparator {
         EQUALS, NOT_EQUALS, LESS_THAN, GREATER_THAN, LESS_THAN_OR_EQUAL_TO, GREATER_THAN_OR_EQUAL_TO;
@@ -49,7 +56,6 @@ public record Records(int number, int id, int prev_status, int new_status, Strin
         }
     }
     // TODO: Add OR filters
-// TODO: Add proper date filter
     @Getter
     public static class Filter {
         private final FilterType type;
@@ -68,7 +74,7 @@ public record Records(int number, int id, int prev_status, int new_status, Strin
                 this.type = FilterType.ALL;
             } else {
                 if (type.equalsIgnoreCase("TIME")) {
-                    this.type = FilterType.DATE; // time is an alias for date(imo time is superior, but I'm not going change the DB schema)
+                    this.type = FilterType.SCANNED_AT; // time is an alias for scanned_at, the indexed timestamp version of date
                 } else if (type.equalsIgnoreCase("KIOSK")) {
                     this.type = FilterType.KIOSK_NAME; // same thing, alias for kiosk_name
                 } else if (type.equalsIgnoreCase("NUMBER")) {
@@ -79,6 +85,11 @@ public record Records(int number, int id, int prev_status, int new_status, Strin
                 if (this.type == FilterType.NUM || this.type == FilterType.ID || this.type == FilterType.PREV_STATUS || this.type == FilterType.NEW_STATUS) {
                     this.value = Integer.parseInt(value);
                     this.comparator = FilterComparator.valueOf(comparator.toUpperCase());
+                } else if (this.type == FilterType.SCANNED_AT) {
+                    // Accepts 2023-11-18, 2023-11-18T08:00 or 2023-11-18 08:00:00, every comparator works
+                    String time = value.trim().replace(' ', 'T');
+                    this.value = time.length() == 10 ? LocalDate.parse(time).atStartOfDay() : LocalDateTime.parse(time);
+                    this.comparator = FilterComparator.valueOf(comparator.toUpperCase());
                 } else {
                     this.value = value;
                     this.comparator = FilterComparator.valueOf(comparator.toUpperCase());
@@ -104,22 +115,38 @@ public record Records(int number, int id, int prev_status, int new_status, Strin
             return filters.toArray(new Filter[0]);
         }
 
-        public static String generateSQL(Filter[] filters) {
+        /**
+         * Turns filters into a WHERE clause with placeholders and the values to bind to them
+         *
+         * @param filters the filters, ALL filters are ignored
+         * @return the compiled filter
+         */
+        public static CompiledFilter compile(Filter[] filters) {
             // ignore ALL filters
             Filter[] filtered = Arrays.stream(filters).filter(filter -> filter.getType() != FilterType.ALL).toArray(Filter[]::new);
             if (filtered.length == 0) {
-                return " ";
+                return new CompiledFilter(" ", new Object[0]);
             }
-            ArrayList<String> filterStrings = new ArrayList<>();
-            for (Filter filter : filtered) {
-                filterStrings.add(filter.toString());
+            // Only the columns and comparators decide the clause, the values are bound
+            StringBuilder shape = new StringBuilder("record");
+            Object[] params = new Object[filtered.length];
+            for (int i = 0; i < filtered.length; i++) {
+                shape.append('|').append(filtered[i].getType().ordinal()).append(':').append(filtered[i].getComparator().ordinal());
+                params[i] = filtered[i].getValue();
             }
-            return " WHERE " + String.join(" AND ", filterStrings) + " ";
+            String where = CompiledFilter.template(shape.toString(), () -> {
+                ArrayList<String> filterStrings = new ArrayList<>();
+                for (Filter filter : filtered) {
+                    filterStrings.add(filter.getType() + " " + filter.getComparator() + " ?");
+                }
+                return " WHERE " + String.join(" AND ", filterStrings) + " ";
+            });
+            return new CompiledFilter(where, params);
         }
 
         @Override
         public String toString() {
-            // return SQL
+            // return SQL, only for reading, queries should use compile so that values are bound
             if (this.type == FilterType.ALL) {
                 // In your code, you should filter out ALL filters
                 throw new UnsupportedOperationException("Cannot convert ALL to SQL WHERE clause");
@@ -128,6 +155,10 @@ public record Records(int number, int id, int prev_status, int new_status, Strin
                 // if it's string, make sure to escape
                 return this.type + " " + this.comparator + " \"" + this.value + "\"";
             }
+            if (this.type == FilterType.SCANNED_AT) {
+                // LocalDateTime prints as ISO, which MySQL reads as a datetime
+                return this.type + " " + this.comparator + " \"" + this.value + "\"";
+            }
             return this.type + " " + this.comparator + " " + this.value;
         }
     }
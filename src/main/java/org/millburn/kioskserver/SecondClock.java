@@ -0,0 +1,55 @@
+package org.millburn.kioskserver;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * The time of a check in, read at most once a second. Records, attendance files and kiosk windows
+ * only use whole seconds, so every scan in the same second shares the same time and the same
+ * {@link Records#DATE_FORMAT} string instead of building its own.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public final class SecondClock {
+    /**
+     * ZoneId.systemDefault clones the default TimeZone on every call, so it is read once
+     */
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static volatile Second current = new Second(Long.MIN_VALUE, null, null);
+
+    private SecondClock() {
+    }
+
+    /**
+     * Returns the current time, truncated to the second, in the system time zone
+     */
+    public static ZonedDateTime now() {
+        long epochSecond = Math.floorDiv(System.currentTimeMillis(), 1000L);
+        Second second = current;
+        if(second.epochSecond() == epochSecond) {
+            return second.time();
+        }
+        ZonedDateTime time = ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZONE);
+        current = new Second(epochSecond, time, Records.DATE_FORMAT.format(time));
+        return time;
+    }
+
+    /**
+     * Formats a time with {@link Records#DATE_FORMAT}, reusing the string of the current second
+     *
+     * @param time the time
+     * @return the formatted time
+     */
+    public static String format(ZonedDateTime time) {
+        Second second = current;
+        if(second.time() != null && second.epochSecond() == time.toEpochSecond()
+                && second.time().getZone().equals(time.getZone())) {
+            return second.formatted();
+        }
+        return Records.DATE_FORMAT.format(time);
+    }
+
+    private record Second(long epochSecond, ZonedDateTime time, String formatted) {
+    }
+}
@@ -0,0 +1,89 @@
+package org.millburn.kioskserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Runs Tomcat requests on virtual threads when kiosk.virtual-threads.enabled is true. Virtual
+ * threads need Java 21, the server is still built for Java 17 so they are created through
+ * reflection, and the normal thread pool is kept if the JVM doesn't have them.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Configuration
+@ConditionalOnProperty(name = "kiosk.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadConfig {
+    private static final Logger LOG = LogManager.getLogger(VirtualThreadConfig.class);
+    /**
+     * Connections held by background threads rather than requests, one for the write-behind
+     * queue and one for the record backfill of RecordMigration
+     */
+    private static final int BACKGROUND_CONNECTIONS = 2;
+    /**
+     * Null when the JVM doesn't have virtual threads
+     */
+    private final ExecutorService executor = newVirtualThreadExecutor();
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadCustomizer() {
+        return protocolHandler -> {
+            if (executor != null) {
+                protocolHandler.setExecutor(executor);
+            }
+        };
+    }
+
+    /**
+     * Keeps requests that use the database from queueing up inside the connection pool. The
+     * platform thread pool already limits them, so the filter is only on with virtual threads.
+     */
+    @Bean
+    public FilterRegistrationBean<DatabaseConcurrencyFilter> databaseConcurrencyFilter(
+            DataSource dataSource,
+            @Value("${kiosk.virtual-threads.db-wait-timeout-ms:2000}") long timeoutMs) {
+        int poolSize = dataSource instanceof HikariDataSource hikari ? hikari.getMaximumPoolSize() : -1;
+        // Hikari leaves an unset size at -1 until the pool starts, then uses its default of 10
+        if (poolSize <= 0) {
+            poolSize = 10;
+        }
+        // Requests only get the connections the background threads leave free, or they would wait in the pool
+        int permits = Math.max(1, poolSize - BACKGROUND_CONNECTIONS);
+        FilterRegistrationBean<DatabaseConcurrencyFilter> registration =
+                new FilterRegistrationBean<>(new DatabaseConcurrencyFilter(permits, timeoutMs));
+        // Check ins don't wait on the database, so they are not limited
+        registration.addUrlPatterns("/records", "/listRecords", "/exportRecords", "/getStudents",
+                "/setStudentPrivilege", "/loadIDs", "/addKiosk", "/removeKiosk", "/enableKiosk", "/disableKiosk",
+                "/uploadRelations");
+        registration.setEnabled(executor != null);
+        if (executor != null) {
+            LOG.info("Limiting database requests to " + permits + " at a time, " + poolSize
+                    + " connections less " + BACKGROUND_CONNECTIONS + " for background work");
+        }
+        return registration;
+    }
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor(), or null before Java 21
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOG.info("Handling requests on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            LOG.error("Virtual threads need Java 21, handling requests on platform threads", e);
+            return null;
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package org.millburn.kioskserver;
 
+import org.millburn.kioskserver.kiosk.KioskWebSocketHandler;
+import org.millburn.kioskserver.student.CheckinService;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
@@ -9,13 +10,21 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 @Configuration
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
-    private JdbcTemplate jt;
-    public WebSocketConfig(JdbcTemplate jt) {
-        this.jt = jt;
+    private LoadedMemory lm;
+    private WriteBehindQueue writeBehind;
+    private CheckinService checkins;
+    public WebSocketConfig(LoadedMemory lm, WriteBehindQueue writeBehind, CheckinService checkins) {
+        this.lm = lm;
+        this.writeBehind = writeBehind;
+        this.checkins = checkins;
     }
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-        registry.addHandler(new WebSocketHandler(jt), "/liveRecords")
+        registry.addHandler(new WebSocketHandler(lm), "/liveRecords")
+                .setAllowedOrigins("*");
+        KioskWebSocketHandler kioskHandler = new KioskWebSocketHandler(lm, writeBehind, checkins);
+        registry.addHandler(kioskHandler, "/kiosk")
+                .addInterceptors(kioskHandler.handshakeInterceptor())
                 .setAllowedOrigins("*");
     }
 }
\ No newline at end of file
@@ -3,86 +3,325 @@ package org.millburn.kioskserver;
 import com.nimbusds.jose.shaded.gson.Gson;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class WebSocketHandler extends TextWebSocketHandler {
-    private static JdbcTemplate jt;
+/**
+ * Pushes records to the dashboards connected to /liveRecords. Messages are JSON text unless the
+ * dashboard asks for the {@link BinaryRecordEncoder#PROTOCOL} subprotocol when it connects.
+ */
+public class WebSocketHandler extends TextWebSocketHandler implements SubProtocolCapable {
+    /**
+     * How many records a dashboard receives when it connects
+     */
+    public static final int SNAPSHOT_SIZE = 20;
+    /**
+     * The subprotocol for the default JSON messages, for dashboards that want to ask for it
+     */
+    public static final String JSON_PROTOCOL = "kiosk-records-json";
+    private final LoadedMemory lm;
 
-    public WebSocketHandler(JdbcTemplate jt) {
-        this.jt = jt;
+    public WebSocketHandler(LoadedMemory lm) {
+        this.lm = lm;
     }
 
-    public static ArrayList<WebSocketSession> sessions = new ArrayList<>();
+    /**
+     * How many messages can wait for a session before it is considered too slow and disconnected
+     */
+    private static final int OUTBOX_CAPACITY = 256;
+    /**
+     * How many threads send messages to the dashboards
+     */
+    private static final int SENDER_THREADS = 4;
+    /**
+     * Sends queued messages so that a slow dashboard never blocks a check in
+     */
+    private static final ExecutorService SENDERS = Executors.newFixedThreadPool(SENDER_THREADS, r -> {
+        Thread t = new Thread(r, "websocket-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * Every open session by its id, along with the messages waiting to be sent to it
+     */
+    private static final Map<String, Outbox> sessions = new ConcurrentHashMap<>();
     public static final Logger logger = LogManager.getLogger(WebSocketHandler.class);
+    /**
+     * Gson is thread safe, so one instance is shared instead of building one per message
+     */
+    private static final Gson GSON = new Gson();
 
     @Override
     public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) {
         // Handle incoming messages here
         String receivedMessage = (String) message.getPayload();
         // Process the message and send a response if needed
-        try {
-            session.sendMessage(new TextMessage("Received: " + receivedMessage));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        Outbox outbox = sessions.get(session.getId());
+        if (outbox != null) {
+            outbox.offer(new TextMessage("Received: " + receivedMessage));
         }
     }
 
+    @Override
+    public List<String> getSubProtocols() {
+        return List.of(BinaryRecordEncoder.PROTOCOL, JSON_PROTOCOL);
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
         // Perform actions when a new WebSocket connection is established
-        sessions.add(session);
-        System.out.println("New connection: " + session.getId() + " | sessions: " + sessions.size());
-        try {
-            session.sendMessage(new TextMessage(new Gson().toJson(getRecords())));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        boolean binary = BinaryRecordEncoder.PROTOCOL.equals(session.getAcceptedProtocol());
+        Outbox outbox = new Outbox(session, binary ? new BinaryRecordEncoder() : null);
+        // Registered before the recent records are read, so a record logged in between is pushed
+        // rather than missed. Records that made it into the snapshot aren't pushed again.
+        sessions.put(session.getId(), outbox);
+        outbox.offerSnapshot(lm.getRecentRecords().latest(SNAPSHOT_SIZE), null);
+        logger.info("New connection: {} | format: {} | sessions: {}", session.getId(),
+                binary ? "binary" : "json", sessions.size());
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
         // Perform actions when a WebSocket connection is closed
-        System.out.println("Connection closed: " + status.getReason());
-        sessions.remove(session);
+        logger.info("Connection closed: {}", status.getReason());
+        sessions.remove(session.getId());
     }
 
+    /**
+     * Queues a message for every JSON session, the message is encoded once and shared between them
+     *
+     * @param message the message to send
+     */
     public static void broadcast(String message) {
-        for (WebSocketSession session : sessions) {
+        TextMessage textMessage = new TextMessage(message.getBytes(StandardCharsets.UTF_8));
+        for (Outbox outbox : sessions.values()) {
+            if (outbox.encoder == null) {
+                outbox.offer(textMessage);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of open sessions
+     */
+    public static int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Builds the message a dashboard receives when it connects
+     * <p>
+     * {"type":"snapshot","records":[...]}
+     *
+     * @param records the most recent records, newest first
+     * @return the JSON message
+     */
+    public static String snapshotMessage(List<Records> records) {
+        return "{\"type\":\"snapshot\",\"records\":" + GSON.toJson(records) + "}";
+    }
+
+    /**
+     * Pushes a single new record to every dashboard without touching the database
+     * <p>
+     * {"type":"record","record":{...}}
+     *
+     * @param record the record that was just logged
+     */
+    public static void broadcastRecord(Records record) {
+        // The JSON is only built if a JSON session is open, and then shared between them
+        TextMessage json = null;
+        for (Outbox outbox : sessions.values()) {
+            if (outbox.encoder == null && json == null) {
+                json = textMessage("{\"type\":\"record\",\"record\":" + GSON.toJson(record) + "}");
+            }
+            outbox.offerRecord(record, json);
+        }
+    }
+
+    /**
+     * Replaces what every dashboard shows with the most recent records, for when too many records
+     * were logged at once to push them one by one
+     *
+     * @param records the most recent records, newest first
+     */
+    public static void broadcastSnapshot(List<Records> records) {
+        TextMessage json = null;
+        for (Outbox outbox : sessions.values()) {
+            if (outbox.encoder == null && json == null) {
+                json = textMessage(snapshotMessage(records));
+            }
+            outbox.offerSnapshot(records, json);
+        }
+    }
+
+    private static TextMessage textMessage(String message) {
+        return new TextMessage(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The messages waiting to be sent to one session. At most one sender thread drains it at a
+     * time, so messages arrive in order and the session is never written to concurrently. That
+     * includes closing it, which only the sender does.
+     */
+    private static class Outbox implements Runnable {
+        private final WebSocketSession session;
+        /**
+         * Encodes the messages of a binary session, null for a JSON session. Only the sender thread
+         * uses it, so encoding never runs on a check in's thread.
+         */
+        private final BinaryRecordEncoder encoder;
+        /**
+         * Messages to send as they are, or for a binary session the Records and BinarySnapshots
+         * that the sender encodes in the order they were queued
+         */
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+        /**
+         * Whether a sender thread is already draining this outbox
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /**
+         * Set when the session should be closed, the sender closes it instead of sending the rest
+         */
+        private volatile CloseStatus closing;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        /**
+         * The record numbers in the last snapshot queued, a record among them isn't pushed again
+         */
+        private int[] snapshotNums = new int[0];
+        private int snapshotLatest = Integer.MIN_VALUE;
+
+        Outbox(WebSocketSession session, BinaryRecordEncoder encoder) {
+            this.session = session;
+            this.encoder = encoder;
+        }
+
+        /**
+         * Queues a record. Records and snapshots are queued under the outbox's lock, so that a
+         * record is never queued behind a snapshot it was left out of the check for.
+         */
+        synchronized void offerRecord(Records record, TextMessage json) {
+            if (record.number() <= snapshotLatest && inSnapshot(record.number())) {
+                return;
+            }
+            offer(encoder == null ? json : record);
+        }
+
+        synchronized void offerSnapshot(List<Records> records, TextMessage json) {
+            int[] nums = new int[records.size()];
+            int latest = Integer.MIN_VALUE;
+            for (int i = 0; i < nums.length; i++) {
+                nums[i] = records.get(i).number();
+                latest = Math.max(latest, nums[i]);
+            }
+            this.snapshotNums = nums;
+            this.snapshotLatest = latest;
+            if (encoder == null) {
+                offer(json != null ? json : textMessage(snapshotMessage(records)));
+            } else {
+                offer(new BinarySnapshot(records));
+            }
+        }
+
+        private boolean inSnapshot(int num) {
+            for (int snapshotNum : snapshotNums) {
+                if (snapshotNum == num) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void offer(Object message) {
+            if (closing != null) {
+                return;
+            }
+            if (!queue.offer(message)) {
+                // Dropping a record would leave the dashboard out of date, so it is disconnected
+                // instead and gets a fresh snapshot when it reconnects. This runs on a check in's
+                // thread while a sender may be writing to the session, so the sender closes it.
+                logger.warn("Session " + session.getId() + " is too slow, disconnecting");
+                sessions.remove(session.getId());
+                closing = CloseStatus.SESSION_NOT_RELIABLE;
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                SENDERS.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
             try {
-                session.sendMessage(new TextMessage(message));
+                Object message;
+                while (closing == null && (message = queue.poll()) != null) {
+                    if (!session.isOpen()) {
+                        queue.clear();
+                        break;
+                    }
+                    session.sendMessage(encode(message));
+                }
             } catch (IOException e) {
                 logger.error("Failed to send message to session " + session.getId(), e);
+                closing = CloseStatus.SERVER_ERROR;
+            } finally {
+                if (closing != null) {
+                    close(closing);
+                }
+                scheduled.set(false);
+                // A message may have been queued, or the session marked for closing, after the
+                // loop finished but before the flag cleared
+                if ((closing != null ? !closed.get() : !queue.isEmpty() && session.isOpen())
+                        && scheduled.compareAndSet(false, true)) {
+                    SENDERS.execute(this);
+                }
             }
         }
-    }
 
-    public static List<Records> getRecords() {
-        String sql = "SELECT * FROM record ORDER BY num DESC LIMIT 20";
-        try {
-            List<Map<String, Object>> rows = jt.queryForList(sql);
-            List<Records> records = rows.stream().map(row -> new Records(
-                    (int) row.get("num"),
-                    (int) row.get("id"),
-                    (int) row.get("prev_status"),
-                    (int) row.get("new_status"),
-                    row.get("date").toString(),
-                    row.get("kiosk_name").toString()
-            )).toList();
-
-            return records;
-        } catch (Exception e) {
-            logger.error("Failed to get records", e);
-            throw new RuntimeException(e);
+        /**
+         * Encodes a binary session's record or snapshot, the encoder remembers what it sent so they
+         * are encoded in the order they are sent
+         */
+        private WebSocketMessage<?> encode(Object message) {
+            if (message instanceof Records record) {
+                return encoder.record(record);
+            }
+            if (message instanceof BinarySnapshot snapshot) {
+                return encoder.snapshot(snapshot.records());
+            }
+            return (WebSocketMessage<?>) message;
+        }
+
+        private void close(CloseStatus status) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            sessions.remove(session.getId());
+            queue.clear();
+            try {
+                session.close(status);
+            } catch (IOException e) {
+                logger.error("Failed to close session " + session.getId(), e);
+            }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A snapshot queued for a binary session, encoded by its sender
+     */
+    private record BinarySnapshot(List<Records> records) {
+    }
+}
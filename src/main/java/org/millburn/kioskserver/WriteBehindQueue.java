@@ -0,0 +1,523 @@
+package org.millburn.kioskserver;
+
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.millburn.kioskserver.student.StudentRoster;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * Queues record inserts and student status updates and writes them to the database in batches on a
+ * background thread, so that a check in does not have to wait for the database to commit
+ * <p>
+ * A kiosk has already been answered by the time its writes are flushed, so a batch that fails is
+ * never dropped. It is retried, and if it still fails after kiosk.write-behind.max-attempts, or the
+ * database is still down when the server shuts down, its records are written to a dead letter file,
+ * which is replayed the next time the server starts. The status updates of a batch that keeps
+ * failing while the server runs are tried again with the next batch instead, so that replaying
+ * them can't undo a later status.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+@DependsOn("recordMigration")
+public class WriteBehindQueue {
+    /**
+     * Update student's status by student ID
+     */
+    private static final String DB_SET_STUDENT_STATUS_BY_ID = "UPDATE students set status = ? WHERE id = ?";
+    /**
+     * Logs student transaction into record, the record number is assigned by us instead of
+     * AUTO_INCREMENT so that it is known before the row is written
+     */
+    private static final String DB_LOG_TRANSACTION = "INSERT INTO `record` (`num`, `id`, `prev_status`, `new_status`, `date`, `kiosk_name`, `scanned_at`) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    /**
+     * Logs a record again, after a failed attempt or from the dead letter file. It may have been
+     * written already if a commit went through but its reply didn't.
+     */
+    private static final String DB_RETRY_TRANSACTION = "INSERT IGNORE INTO `record` (`num`, `id`, `prev_status`, `new_status`, `date`, `kiosk_name`, `scanned_at`) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    /**
+     * Reads back records that were logged again, the record numbers are appended
+     */
+    private static final String DB_GET_RECORDS_BY_NUM = "SELECT num, id, prev_status, new_status, date, kiosk_name FROM `record` WHERE num IN ";
+    /**
+     * How many times a batch is tried while shutting down before it goes to the dead letter file
+     */
+    private static final int SHUTDOWN_ATTEMPTS = 3;
+    /**
+     * The most records read back in one query after they were logged again
+     */
+    private static final int READ_BACK_CHUNK_SIZE = 1000;
+    /**
+     * The wait before the first retry of a failed batch, doubled after every failure up to the max
+     */
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final Logger LOG = LogManager.getLogger(WriteBehindQueue.class);
+
+    /**
+     * A pending change to a student's status. For a student in the roster the status is read from
+     * the roster when the batch is flushed, so it is written as it is then rather than as it was
+     * when it was queued, or not at all if the roster was replaced since. Otherwise roster is null
+     * and status is written.
+     */
+    private record StatusUpdate(int id, int status, StudentRoster roster, int slot) {
+        int current() {
+            return roster == null ? status : roster.getStatus(slot);
+        }
+    }
+
+    /**
+     * A pending record, along with the timestamp that goes into scanned_at
+     */
+    private record PendingRecord(Records record, Timestamp scannedAt) {
+    }
+
+    /**
+     * Writes that are queued together and always flushed in the same transaction
+     */
+    public class Batch {
+        private final List<Object> writes = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Adds a student transaction to be logged into record
+         *
+         * @return the record that will be written, including its record number
+         */
+        public Records logRecord(int id, int prevStatus, int newStatus, ZonedDateTime time, String kioskName) {
+            PendingRecord pending = pendingRecord(id, prevStatus, newStatus, time, kioskName);
+            writes.add(pending);
+            return pending.record();
+        }
+
+        /**
+         * Adds an update of a student's status
+         */
+        public void updateStatus(int id, int status) {
+            writes.add(new StatusUpdate(id, status, null, StudentRoster.NOT_FOUND));
+        }
+
+        /**
+         * Adds an update of a student's status, with the status read from the roster when it is
+         * written
+         */
+        public void updateStatus(StudentRoster roster, int slot) {
+            writes.add(new StatusUpdate(roster.getId(slot), 0, roster, slot));
+        }
+    }
+
+    /**
+     * The object that will make using JDBC easier for us
+     */
+    private final JdbcTemplate jt;
+    /**
+     * Wraps every flush in a single transaction so that a batch costs one commit
+     */
+    private final TransactionTemplate tt;
+    /**
+     * Pending writes, either a StatusUpdate, a PendingRecord or a Batch, in the order they were made
+     */
+    private final BlockingQueue<Object> queue;
+    /**
+     * The most writes that are flushed in one batch
+     */
+    private final int batchSize;
+    /**
+     * The longest a write waits in the queue before it is flushed
+     */
+    private final long flushIntervalMs;
+    /**
+     * How many times a batch is tried while the server runs before its records go to the dead
+     * letter file
+     */
+    private final int maxAttempts;
+    /**
+     * The number given to the next record
+     */
+    private final AtomicInteger nextNum;
+    /**
+     * Where batches that couldn't be written before shutdown are kept until the next start
+     */
+    private final Path deadLetterFile;
+    private final Thread worker;
+    private volatile boolean running = true;
+    /**
+     * Set once a batch went to the dead letter file during shutdown, the rest follow it there
+     * instead of waiting on a database that is down
+     */
+    private boolean spilling = false;
+    /**
+     * Statuses of a batch that went to the dead letter file while running, written with the next
+     * batch. Only used by the worker thread.
+     */
+    private final Map<Integer, Integer> carriedStatuses = new LinkedHashMap<>();
+
+    @Autowired
+    public WriteBehindQueue(JdbcTemplate jt, PlatformTransactionManager tm,
+                            @Value("${kiosk.write-behind.capacity:10000}") int capacity,
+                            @Value("${kiosk.write-behind.batch-size:500}") int batchSize,
+                            @Value("${kiosk.write-behind.flush-interval-ms:200}") long flushIntervalMs,
+                            @Value("${kiosk.write-behind.max-attempts:10}") int maxAttempts,
+                            @Value("${kiosk.write-behind.dead-letter-file:write-behind-dead-letter.tsv}") String deadLetterFile) {
+        Assert.notNull(jt, "JdbcTemplate must not be null");
+        this.jt = jt;
+        this.tt = new TransactionTemplate(tm);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxAttempts = maxAttempts;
+        this.deadLetterFile = Path.of(deadLetterFile);
+
+        // Before the next record number is read, since the replayed records already have theirs
+        replayDeadLetters();
+        Integer maxNum = jt.queryForObject("SELECT MAX(num) FROM record", Integer.class);
+        this.nextNum = new AtomicInteger(maxNum == null ? 1 : maxNum + 1);
+
+        this.worker = new Thread(this::run, "write-behind");
+        this.worker.start();
+    }
+
+    /**
+     * Queues a student transaction to be logged into record
+     *
+     * @return the record that will be written, including its record number
+     */
+    public Records logRecord(int id, int prevStatus, int newStatus, ZonedDateTime time, String kioskName) {
+        PendingRecord pending = pendingRecord(id, prevStatus, newStatus, time, kioskName);
+        enqueue(pending);
+        return pending.record();
+    }
+
+    private PendingRecord pendingRecord(int id, int prevStatus, int newStatus, ZonedDateTime time, String kioskName) {
+        Records record = new Records(nextNum.getAndIncrement(), id, prevStatus, newStatus,
+                SecondClock.format(time), kioskName);
+        return new PendingRecord(record,
+                // The same local time as converting to the system zone, without the conversion
+                Timestamp.from(time.toInstant()));
+    }
+
+    /**
+     * Queues an update of a student's status
+     */
+    public void updateStatus(int id, int status) {
+        enqueue(new StatusUpdate(id, status, null, StudentRoster.NOT_FOUND));
+    }
+
+    /**
+     * Queues an update of a student's status, with the status read from the roster when it is
+     * written
+     */
+    public void updateStatus(StudentRoster roster, int slot) {
+        enqueue(new StatusUpdate(roster.getId(slot), 0, roster, slot));
+    }
+
+    /**
+     * Starts a batch of writes, nothing is queued until the batch is submitted
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Queues every write of a batch at once, they are flushed in the same transaction
+     */
+    public void submit(Batch batch) {
+        if(batch.writes.size() == 1) {
+            enqueue(batch.writes.get(0));
+        } else if(!batch.writes.isEmpty()) {
+            enqueue(batch);
+        }
+    }
+
+    /**
+     * Returns the number of writes waiting to be flushed, a batch counts as one
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void enqueue(Object write) {
+        if(queue.offer(write)) {
+            return;
+        }
+
+        // The database can't keep up, so the caller waits for room instead of dropping the write
+        LOG.warn("Write-behind queue is full, waiting for a flush");
+        try {
+            queue.put(write);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>(batchSize);
+        while(running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Keeps collecting until the batch is full or the flush interval passes
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while(batch.size() < batchSize && running) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if(batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    Object next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch(InterruptedException e) {
+                // Nothing interrupts the worker on purpose, keep draining until shutdown
+            }
+
+            if(!batch.isEmpty()) {
+                queue.drainTo(batch, batchSize - batch.size());
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch to the database in one transaction
+     */
+    private void flush(List<Object> batch) {
+        // Only the last status of each student matters, so carried statuses go first
+        Map<Integer, Integer> statuses = new LinkedHashMap<>(carriedStatuses);
+        carriedStatuses.clear();
+        List<Object[]> records = new ArrayList<>();
+        for(Object write : batch) {
+            if(write instanceof Batch b) {
+                for(Object batched : b.writes) {
+                    collect(batched, statuses, records);
+                }
+            } else {
+                collect(write, statuses, records);
+            }
+        }
+        List<Object[]> statusArgs = new ArrayList<>(statuses.size());
+        statuses.forEach((id, status) -> statusArgs.add(new Object[] {status, id}));
+
+        long backoffMs = INITIAL_BACKOFF_MS;
+        for(int attempt = 1; ; attempt++) {
+            if(spilling) {
+                spill(records, statusArgs);
+                return;
+            }
+            boolean retry = attempt > 1;
+            try {
+                tt.executeWithoutResult(tx -> {
+                    if(!records.isEmpty() && retry) {
+                        logAgain(records);
+                    } else if(!records.isEmpty()) {
+                        jt.batchUpdate(DB_LOG_TRANSACTION, records);
+                    }
+                    if(!statusArgs.isEmpty()) {
+                        jt.batchUpdate(DB_SET_STUDENT_STATUS_BY_ID, statusArgs);
+                    }
+                });
+                if(attempt > 1) {
+                    LOG.info("Flushed " + batch.size() + " writes after " + attempt + " attempts");
+                }
+                return;
+            } catch(RuntimeException e) {
+                if(!running && attempt >= SHUTDOWN_ATTEMPTS) {
+                    LOG.error("Failed to flush " + batch.size() + " writes while shutting down, moving them to "
+                            + deadLetterFile, e);
+                    spilling = true;
+                    continue;
+                }
+                if(running && attempt >= maxAttempts) {
+                    // Keeps one bad row from holding up everything queued behind it
+                    LOG.error("Failed to flush " + batch.size() + " writes after " + attempt + " attempts, moving "
+                            + records.size() + " records to " + deadLetterFile + " and retrying "
+                            + statuses.size() + " statuses with the next batch", e);
+                    spill(records, List.of());
+                    statuses.forEach(carriedStatuses::putIfAbsent);
+                    return;
+                }
+                LOG.warn("Failed to flush " + batch.size() + " writes, attempt " + attempt + ", retrying in "
+                        + backoffMs + " ms", e);
+            }
+            // Woken early by shutdown, so that the remaining attempts aren't spent waiting
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(backoffMs));
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * Logs records again. INSERT IGNORE also skips a record whose number is taken by a different
+     * row, so the stored rows are read back and every record that isn't the one stored is logged,
+     * since it is lost.
+     */
+    private void logAgain(List<Object[]> records) {
+        jt.batchUpdate(DB_RETRY_TRANSACTION, records);
+
+        List<Object[]> skipped = new ArrayList<>();
+        // A replayed dead letter file can hold more records than one query should list
+        for(int from = 0; from < records.size(); from += READ_BACK_CHUNK_SIZE) {
+            Map<Integer, Object[]> byNum = new HashMap<>();
+            for(Object[] r : records.subList(from, Math.min(from + READ_BACK_CHUNK_SIZE, records.size()))) {
+                byNum.put((Integer) r[0], r);
+            }
+            SqlRowSet rs = jt.queryForRowSet(DB_GET_RECORDS_BY_NUM + "("
+                    + String.join(", ", Collections.nCopies(byNum.size(), "?")) + ")", byNum.keySet().toArray());
+            while(rs.next()) {
+                Object[] r = byNum.remove(rs.getInt("num"));
+                if(r != null && !(r[1].equals(rs.getInt("id")) && r[2].equals(rs.getInt("prev_status"))
+                        && r[3].equals(rs.getInt("new_status")) && Objects.equals(r[4], rs.getString("date"))
+                        && Objects.equals(r[5], rs.getString("kiosk_name")))) {
+                    skipped.add(r);
+                }
+            }
+            // Not stored at all
+            skipped.addAll(byNum.values());
+        }
+        if(!skipped.isEmpty()) {
+            LOG.error("Skipped " + skipped.size() + " records whose number is taken by a different row: "
+                    + skipped.stream().map(Arrays::toString).toList());
+        }
+    }
+
+    private static void collect(Object write, Map<Integer, Integer> statuses, List<Object[]> records) {
+        if(write instanceof StatusUpdate su) {
+            // An import replaced every status of the students the roster was loaded from
+            if(su.roster() == null || !su.roster().isRetired()) {
+                statuses.put(su.id(), su.current());
+            }
+        } else if(write instanceof PendingRecord pr) {
+            Records r = pr.record();
+            records.add(new Object[] {r.number(), r.id(), r.prev_status(), r.new_status(), r.date(),
+                    r.kiosk_name(), pr.scannedAt()});
+        }
+    }
+
+    /**
+     * Appends writes that couldn't be flushed to the dead letter file, one tab separated line per
+     * write, and forces them to disk
+     */
+    private void spill(List<Object[]> records, List<Object[]> statusArgs) {
+        try(BufferedWriter writer = Files.newBufferedWriter(deadLetterFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC)) {
+            for(Object[] r : records) {
+                Timestamp scannedAt = (Timestamp) r[6];
+                // The kiosk name goes last so that it is the only field that could hold a tab
+                writer.write("record\t" + r[0] + "\t" + r[1] + "\t" + r[2] + "\t" + r[3] + "\t" + r[4] + "\t"
+                        + (scannedAt == null ? "" : scannedAt.getTime()) + "\t"
+                        + String.valueOf(r[5]).replace('\n', ' ').replace('\r', ' '));
+                writer.newLine();
+            }
+            for(Object[] su : statusArgs) {
+                writer.write("status\t" + su[1] + "\t" + su[0]);
+                writer.newLine();
+            }
+        } catch(IOException e) {
+            // Nowhere left to keep them, the log is the only copy
+            LOG.error("Failed to write to " + deadLetterFile + ", lost records: "
+                    + records.stream().map(Arrays::toString).toList() + " and statuses: "
+                    + statusArgs.stream().map(Arrays::toString).toList(), e);
+        }
+    }
+
+    /**
+     * Writes everything in the dead letter file to the database in one transaction and removes the
+     * file. Runs before anything else reads the records or students, so nothing is seen without it.
+     */
+    private void replayDeadLetters() {
+        if(!Files.exists(deadLetterFile)) {
+            return;
+        }
+        List<Object[]> records = new ArrayList<>();
+        List<Object[]> statusArgs = new ArrayList<>();
+        try {
+            for(String line : Files.readAllLines(deadLetterFile, StandardCharsets.UTF_8)) {
+                if(line.startsWith("record\t")) {
+                    String[] f = line.split("\t", 8);
+                    records.add(new Object[] {Integer.parseInt(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+                            Integer.parseInt(f[4]), f[5], f[7], f[6].isEmpty() ? null : new Timestamp(Long.parseLong(f[6]))});
+                } else if(line.startsWith("status\t")) {
+                    String[] f = line.split("\t", 3);
+                    statusArgs.add(new Object[] {Integer.parseInt(f[2]), Integer.parseInt(f[1])});
+                }
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException("Failed to read " + deadLetterFile, e);
+        }
+
+        // Statuses in file order, so a later line for a student wins like it did when it was queued
+        tt.executeWithoutResult(tx -> {
+            if(!records.isEmpty()) {
+                logAgain(records);
+            }
+            if(!statusArgs.isEmpty()) {
+                jt.batchUpdate(DB_SET_STUDENT_STATUS_BY_ID, statusArgs);
+            }
+        });
+        try {
+            Files.delete(deadLetterFile);
+        } catch(IOException e) {
+            throw new UncheckedIOException("Replayed " + deadLetterFile + " but failed to remove it", e);
+        }
+        LOG.info("Replayed " + records.size() + " records and " + statusArgs.size() + " status updates from "
+                + deadLetterFile);
+    }
+
+    /**
+     * Stops accepting new work and flushes everything that is still queued. Writes that still fail
+     * go to the dead letter file.
+     */
+    @PreDestroy
+    public void shutdown() {
+        // The worker notices within one flush interval, interrupting it could break a JDBC call
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.info("Write-behind queue flushed");
+    }
+}
@@ -1,10 +1,11 @@
 package org.millburn.kioskserver.kiosk;
 
 import lombok.Getter;
-import lombok.Setter;
+import org.millburn.kioskserver.relations.AccessPolicy;
 
 /**
- * a model representing a valid access token from the database
+ * a model representing a valid access token from the database. Tokens are never changed, a token
+ * that is disabled or enabled is replaced with a new one.
  *
  * @author Keming Fei
  */
@@ -15,16 +16,20 @@ public class AccessToken {
      */
     private final String accessToken;
     /**
-     * mirrors access from the database
+     * mirrors access from the database, negative when the token is disabled
      */
-    @Setter
-    private Integer access;
+    private final int access;
+    /**
+     * the compiled relation of the token's access level, which is looked up when the token is loaded
+     */
+    private final AccessPolicy policy;
 
     /**
      * Initializes this object
      */
-    public AccessToken(String accessToken, Integer access) {
+    public AccessToken(String accessToken, int access, AccessPolicy policy) {
         this.accessToken = accessToken;
         this.access = access;
+        this.policy = policy;
     }
 }
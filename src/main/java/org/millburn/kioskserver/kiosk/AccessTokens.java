@@ -1,75 +1,98 @@
 package org.millburn.kioskserver.kiosk;
 
 import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.millburn.kioskserver.relations.AccessPolicy;
 import org.millburn.kioskserver.relations.AccessRelationships;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 
 /**
- * Contains all the active kiosk tokens in memory
+ * Contains all the active kiosk tokens in memory, along with the relations they were checked
+ * against. A snapshot is never changed once it is built, changes build a new one which
+ * {@link org.millburn.kioskserver.LoadedMemory} swaps in, so it can be read without locking.
  *
  * @author Alex Kolodkin, Keming Fei
  */
 public class AccessTokens {
+    private static final Logger LOG = LogManager.getLogger(AccessTokens.class);
     /**
      * Stores all the active kiosk tokens
      */
-    private final HashMap<String, AccessToken> tokens;
+    private final Map<String, AccessToken> tokens;
     /**
-     * The object that will make using JDBC easier for us
+     * The relations every token's access level was found in
      */
-    private JdbcTemplate jt;
-    private static final Logger LOG = LogManager.getLogger(AccessTokens.class);
+    @Getter
+    private final AccessRelationships relations;
 
-
-    public AccessTokens(AccessRelationships accessRelationships, JdbcTemplate jt) {
-        // Loads all the tokens from the database
-        tokens = new HashMap<>();
-        this.jt = jt;
+    /**
+     * Loads all the tokens from the database, skipping the ones whose access level has no relation
+     */
+    public AccessTokens(AccessRelationships relations, JdbcTemplate jt) {
+        HashMap<String, AccessToken> loaded = new HashMap<>();
         SqlRowSet rs = jt.queryForRowSet("SELECT * FROM access_tokens");
 
         while(rs.next()) {
-            AccessToken token = new AccessToken(rs.getString(1), rs.getInt(2));
+            String accessToken = rs.getString(1);
+            int access = rs.getInt(2);
             // Since access relations are already loaded we check if the access level exists in the relations
-            if(accessRelationships.containsRelation(token.getAccess())) {
-                tokens.put(token.getAccessToken(), token);
+            AccessPolicy policy = relations.getPolicy(Math.abs(access));
+            if(policy != null) {
+                loaded.put(accessToken, new AccessToken(accessToken, access, policy));
                 continue;
             }
 
-            LOG.info("Ignoring token with invalid access level: " + token.getAccessToken());
+            LOG.info("Ignoring token with invalid access level: " + accessToken);
         }
+        this.relations = relations;
+        this.tokens = Map.copyOf(loaded);
+    }
+
+    private AccessTokens(AccessRelationships relations, Map<String, AccessToken> tokens) {
+        this.relations = relations;
+        this.tokens = Map.copyOf(tokens);
     }
 
     /**
-     * Adds a new token to the list of active tokens
+     * Returns these tokens with a token added or replaced
      *
-     * @param uuid the token of the kiosk
-     * @param accessLevel the access level of the kiosk
-     * @return whether the token was added
+     * @param uuid   the token of the kiosk
+     * @param access the access level of the kiosk, negative if it is disabled
+     * @return the new tokens, or null if the access level has no relation
      */
-    public boolean addToken(String uuid, int accessLevel) {
-        if(!tokens.containsKey(uuid)) {
-            tokens.put(uuid, new AccessToken(uuid, accessLevel));
-            return true;
+    public AccessTokens withToken(String uuid, int access) {
+        AccessPolicy policy = relations.getPolicy(Math.abs(access));
+        if(policy == null) {
+            return null;
         }
-
-        return false;
+        HashMap<String, AccessToken> copy = new HashMap<>(tokens);
+        copy.put(uuid, new AccessToken(uuid, access, policy));
+        return new AccessTokens(relations, copy);
     }
 
     /**
-     * Removes a token from the list of active tokens
+     * Returns these tokens without a token
      *
      * @param uuid the token of the kiosk
-     * @return whether the token was removed
+     * @return the new tokens
      */
-    public boolean removeToken(String uuid) {
-        if(!tokens.containsKey(uuid)) {
-            return false;
-        }
-        tokens.remove(uuid);
-        return true;
+    public AccessTokens withoutToken(String uuid) {
+        HashMap<String, AccessToken> copy = new HashMap<>(tokens);
+        copy.remove(uuid);
+        return new AccessTokens(relations, copy);
+    }
+
+    /**
+     * Returns whether a token exists
+     *
+     * @param token the token of the kiosk
+     */
+    public boolean containsToken(String token) {
+        return tokens.containsKey(token);
     }
 
     /**
@@ -79,6 +102,6 @@ public class AccessTokens {
      * @return the token object, or null if the token does not exist
      */
     public AccessToken getTokenInfo(String token) {
-        return tokens.get(token);
+        return token == null ? null : tokens.get(token);
     }
 }
@@ -0,0 +1,247 @@
+package org.millburn.kioskserver.kiosk;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.millburn.kioskserver.LoadedMemory;
+import org.millburn.kioskserver.SecondClock;
+import org.millburn.kioskserver.WriteBehindQueue;
+import org.millburn.kioskserver.student.CheckinMetrics;
+import org.millburn.kioskserver.student.CheckinService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+/**
+ * A check in channel for kiosks that stay connected, so that a scan costs one small frame instead
+ * of an HTTP request.
+ * <p>
+ * A kiosk connects once to /kiosk?access_token=...&kiosk_name=... and then sends a frame per scan,
+ * {"id":...,"student_id":"12345"} with an optional "scanned_at" in milliseconds since the epoch.
+ * Every frame is answered with {"type":"result","id":...,"approval_status":...} or
+ * {"type":"result","id":...,"error":...}, where id is copied from the scan, so a kiosk can send
+ * scans without waiting for the answers of the previous ones. Answers come back in the order the
+ * scans were sent.
+ * <p>
+ * The server also pushes {"type":"token","state":"enabled|disabled|removed"} when the kiosk
+ * connects and whenever its token is changed from the dashboard.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class KioskWebSocketHandler extends TextWebSocketHandler {
+    private static final Logger LOG = LogManager.getLogger(KioskWebSocketHandler.class);
+    private static final String ACCESS_TOKEN = "access_token";
+    private static final String KIOSK_NAME = "kiosk_name";
+    /**
+     * How long a send to a kiosk may block, and how much can be buffered for it meanwhile, before
+     * the kiosk is disconnected
+     */
+    private static final int SEND_TIME_LIMIT = 5000;
+    private static final int BUFFER_SIZE_LIMIT = 64 * 1024;
+    /**
+     * The open sessions of every token, so that token changes can be pushed to its kiosks
+     */
+    private static final Map<String, Set<WebSocketSession>> sessions = new ConcurrentHashMap<>();
+
+    private final LoadedMemory lm;
+    private final WriteBehindQueue writeBehind;
+    private final CheckinService checkins;
+    private final ObjectMapper om = new ObjectMapper();
+
+    public KioskWebSocketHandler(LoadedMemory lm, WriteBehindQueue writeBehind, CheckinService checkins) {
+        this.lm = lm;
+        this.writeBehind = writeBehind;
+        this.checkins = checkins;
+    }
+
+    /**
+     * Refuses the connection before it is upgraded if the kiosk didn't send a known token
+     */
+    public HandshakeInterceptor handshakeInterceptor() {
+        return new HandshakeInterceptor() {
+            @Override
+            public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                           WebSocketHandler wsHandler, Map<String, Object> attributes) {
+                if(!(request instanceof ServletServerHttpRequest servletRequest)) {
+                    response.setStatusCode(HttpStatus.BAD_REQUEST);
+                    return false;
+                }
+                String accessToken = servletRequest.getServletRequest().getParameter(ACCESS_TOKEN);
+                String kioskName = servletRequest.getServletRequest().getParameter(KIOSK_NAME);
+                if(accessToken == null || kioskName == null) {
+                    response.setStatusCode(HttpStatus.BAD_REQUEST);
+                    return false;
+                }
+                if(lm.getAccessTokens().getTokenInfo(accessToken) == null) {
+                    response.setStatusCode(HttpStatus.FORBIDDEN);
+                    return false;
+                }
+                attributes.put(ACCESS_TOKEN, accessToken);
+                attributes.put(KIOSK_NAME, kioskName);
+                return true;
+            }
+
+            @Override
+            public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                       WebSocketHandler wsHandler, Exception exception) {
+            }
+        };
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws IOException {
+        String accessToken = (String) session.getAttributes().get(ACCESS_TOKEN);
+        // Token events are sent from the dashboard's request threads while results are sent from
+        // this session's, so sends go through the decorator which never writes concurrently
+        WebSocketSession kiosk = new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT, BUFFER_SIZE_LIMIT);
+        session.getAttributes().put(ConcurrentWebSocketSessionDecorator.class.getName(), kiosk);
+        sessions.computeIfAbsent(accessToken, t -> ConcurrentHashMap.newKeySet()).add(kiosk);
+
+        AccessToken at = this.lm.getAccessTokens().getTokenInfo(accessToken);
+        kiosk.sendMessage(new TextMessage(tokenMessage(at == null ? "removed" : at.getAccess() < 0 ? "disabled" : "enabled")));
+        LOG.info("Kiosk connected: {} | session: {}", session.getAttributes().get(KIOSK_NAME), session.getId());
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        String accessToken = (String) session.getAttributes().get(ACCESS_TOKEN);
+        Object kiosk = session.getAttributes().get(ConcurrentWebSocketSessionDecorator.class.getName());
+        sessions.computeIfPresent(accessToken, (t, open) -> {
+            open.remove(kiosk);
+            return open.isEmpty() ? null : open;
+        });
+        LOG.info("Kiosk disconnected: {} | status: {}", session.getAttributes().get(KIOSK_NAME), status);
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws IOException {
+        WebSocketSession kiosk = (WebSocketSession) session.getAttributes()
+                .get(ConcurrentWebSocketSessionDecorator.class.getName());
+        String accessToken = (String) session.getAttributes().get(ACCESS_TOKEN);
+        String kioskName = (String) session.getAttributes().get(KIOSK_NAME);
+
+        JsonNode scan;
+        try {
+            scan = this.om.readTree(message.getPayload());
+        } catch(JsonProcessingException e) {
+            kiosk.sendMessage(new TextMessage(errorMessage(null, "bad_request")));
+            return;
+        }
+        JsonNode id = scan.get("id");
+        JsonNode studentId = scan.get("student_id");
+        if(!scan.isObject() || studentId == null || !studentId.isValueNode()) {
+            kiosk.sendMessage(new TextMessage(errorMessage(id, "bad_request")));
+            return;
+        }
+
+        long stageStart = System.nanoTime();
+        // The token is looked up for every scan so that disabling it takes effect straight away
+        AccessToken at = this.lm.getAccessTokens().getTokenInfo(accessToken);
+        CheckinMetrics.Outcome rejected = this.checkins.rejectToken(at, accessToken, kioskName, studentId.asText());
+        if(rejected == CheckinMetrics.Outcome.INVALID_TOKEN) {
+            kiosk.sendMessage(new TextMessage(errorMessage(id, "invalid_token")));
+            return;
+        }
+        if(rejected == CheckinMetrics.Outcome.DISABLED_TOKEN) {
+            kiosk.sendMessage(new TextMessage(errorMessage(id, "token_disabled")));
+            return;
+        }
+        stageStart = this.checkins.getMetrics().record(CheckinMetrics.Stage.TOKEN_LOOKUP, stageStart);
+
+        ZonedDateTime now = SecondClock.now();
+        ZonedDateTime scannedAt = now;
+        JsonNode scannedAtNode = scan.get("scanned_at");
+        // A kiosk clock that runs ahead can't put scans in the future
+        if(scannedAtNode != null && scannedAtNode.canConvertToLong()
+                && scannedAtNode.asLong() < now.toInstant().toEpochMilli()) {
+            scannedAt = ZonedDateTime.ofInstant(Instant.ofEpochMilli(scannedAtNode.asLong()), ZoneId.systemDefault());
+        }
+
+        WriteBehindQueue.Batch writes = this.writeBehind.newBatch();
+        CheckinMetrics.Outcome outcome = this.checkins.scan(at, accessToken, kioskName, studentId.asText(),
+                scannedAt, writes, true, stageStart);
+        this.writeBehind.submit(writes);
+
+        if(outcome == CheckinMetrics.Outcome.INVALID_ID_FORMAT) {
+            kiosk.sendMessage(new TextMessage(errorMessage(id, "invalid_student_id_format")));
+        } else if(outcome == CheckinMetrics.Outcome.OUTSIDE_HOURS) {
+            kiosk.sendMessage(new TextMessage(errorMessage(id, "outside_active_time")));
+        } else {
+            kiosk.sendMessage(new TextMessage("{\"type\":\"result\",\"id\":" + idJson(id)
+                    + ",\"approval_status\":" + outcome.approvalStatus() + "}"));
+        }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        LOG.warn("Kiosk session " + session.getId() + " failed", exception);
+    }
+
+    /**
+     * Tells every kiosk connected with a token that the token changed. Kiosks whose token was
+     * removed are disconnected after being told.
+     *
+     * @param accessToken the token that changed
+     * @param state       enabled, disabled or removed
+     */
+    public static void pushTokenState(String accessToken, String state) {
+        Set<WebSocketSession> open = sessions.get(accessToken);
+        if(open == null) {
+            return;
+        }
+        TextMessage message = new TextMessage(tokenMessage(state));
+        for(WebSocketSession kiosk : open) {
+            try {
+                kiosk.sendMessage(message);
+                if("removed".equals(state)) {
+                    kiosk.close(CloseStatus.POLICY_VIOLATION.withReason("Token removed"));
+                }
+            } catch(IOException e) {
+                LOG.error("Failed to send token state to session " + kiosk.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of open kiosk sessions
+     */
+    public static int getSessionCount() {
+        int count = 0;
+        for(Set<WebSocketSession> open : sessions.values()) {
+            count += open.size();
+        }
+        return count;
+    }
+
+    private static String tokenMessage(String state) {
+        return "{\"type\":\"token\",\"state\":\"" + state + "\"}";
+    }
+
+    private static String errorMessage(JsonNode id, String error) {
+        return "{\"type\":\"result\",\"id\":" + idJson(id) + ",\"error\":\"" + error + "\"}";
+    }
+
+    /**
+     * The id of a scan is sent back as it came, so a kiosk can use numbers or strings
+     */
+    private static String idJson(JsonNode id) {
+        return id == null || !id.isValueNode() ? "null" : id.toString();
+    }
+}
@@ -0,0 +1,172 @@
+package org.millburn.kioskserver.relations;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * An access relation compiled into lookup tables when the relations are loaded, so that deciding a
+ * scan is a couple of bit tests instead of a switch and time arithmetic per request.
+ * <p>
+ * Which privileges are accepted is kept as a bit per privilege, and when the kiosk is open as a
+ * bit per minute of the day. A relation can have several windows, and a window whose end is
+ * before its start crosses midnight.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public final class AccessPolicy {
+    /**
+     * The result of a scan for a student that is in the roster
+     */
+    public enum Verdict {
+        ALLOW, DENY, OUT_OF_WINDOW
+    }
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    /**
+     * Privileges from 0 up to this are decided from a bit mask, others fall back to the relation
+     */
+    private static final int TABLE_PRIVILEGES = Long.SIZE;
+
+    private final AccessRelationship relation;
+    /**
+     * Bit p is set if privilege p is accepted
+     */
+    private final long acceptedPrivileges;
+    /**
+     * Bit m is set if the kiosk is open during minute m of the day
+     */
+    private final long[] openMinutes = new long[(MINUTES_PER_DAY + Long.SIZE - 1) / Long.SIZE];
+    /**
+     * Bit m is set if minute m is after midnight in a window that started the day before
+     */
+    private final long[] carriedMinutes = new long[openMinutes.length];
+    /**
+     * Whether scans outside the windows are refused. Relations with a start hour of -1 accept scans
+     * at any time, and only write attendance inside their window.
+     */
+    private final boolean restricted;
+
+    /**
+     * Compiles a relation
+     *
+     * @param relation the relation, whose own window is used unless its start hour is -1
+     * @param windows  more windows for the relation's access level
+     */
+    public AccessPolicy(AccessRelationship relation, List<Window> windows) {
+        this.relation = relation;
+        long accepted = 0;
+        for(int privilege = 0; privilege < TABLE_PRIVILEGES; privilege++) {
+            if(relation.accept(privilege)) {
+                accepted |= 1L << privilege;
+            }
+        }
+        this.acceptedPrivileges = accepted;
+
+        this.restricted = relation.startHour() != -1;
+        open(relation.startHour() * 60 + relation.startMinute(), relation.endHour() * 60 + relation.endMinute());
+        for(Window window : windows) {
+            open(window.start(), window.end());
+        }
+    }
+
+    /**
+     * Marks minutes from start to end, both included, as open
+     */
+    private void open(int start, int end) {
+        if(start > end && start >= 0) {
+            // Crosses midnight
+            mark(openMinutes, start, MINUTES_PER_DAY - 1);
+            mark(openMinutes, 0, end);
+            mark(carriedMinutes, 0, end);
+            return;
+        }
+        // A start hour of -1 makes start negative, which opens the window from midnight
+        mark(openMinutes, Math.max(start, 0), Math.min(end, MINUTES_PER_DAY - 1));
+    }
+
+    private static void mark(long[] minutes, int start, int end) {
+        for(int minute = start; minute <= end; minute++) {
+            minutes[minute >>> 6] |= 1L << minute;
+        }
+    }
+
+    /**
+     * Returns whether a student with a privilege is accepted
+     *
+     * @param privilege the student privilege level
+     */
+    public boolean accepts(int privilege) {
+        if(privilege >= 0 && privilege < TABLE_PRIVILEGES) {
+            return (acceptedPrivileges >>> privilege & 1L) != 0;
+        }
+        return relation.accept(privilege);
+    }
+
+    /**
+     * Returns whether a minute is inside one of the windows
+     *
+     * @param minuteOfDay minutes since midnight
+     */
+    public boolean isOpen(int minuteOfDay) {
+        return (openMinutes[minuteOfDay >>> 6] >>> minuteOfDay & 1L) != 0;
+    }
+
+    /**
+     * Returns the day a scan is attended on, which is the day before for scans after midnight in a
+     * window that crosses it, so that a whole night is in one attendance file
+     *
+     * @param date        the date of the scan
+     * @param minuteOfDay when the student scanned, in minutes since midnight
+     */
+    public LocalDate attendanceDay(LocalDate date, int minuteOfDay) {
+        return (carriedMinutes[minuteOfDay >>> 6] >>> minuteOfDay & 1L) != 0 ? date.minusDays(1) : date;
+    }
+
+    /**
+     * Returns whether scans outside the windows are refused
+     */
+    public boolean isRestricted() {
+        return restricted;
+    }
+
+    /**
+     * Decides a scan of a student that is in the roster
+     *
+     * @param privilege   the student privilege level
+     * @param minuteOfDay when the student scanned, in minutes since midnight
+     * @return the verdict
+     */
+    public Verdict decide(int privilege, int minuteOfDay) {
+        if(restricted && !isOpen(minuteOfDay)) {
+            return Verdict.OUT_OF_WINDOW;
+        }
+        return accepts(privilege) ? Verdict.ALLOW : Verdict.DENY;
+    }
+
+    /**
+     * Decides a scan of a student that isn't in the roster, who is never allowed
+     *
+     * @param minuteOfDay when the student scanned, in minutes since midnight
+     * @return OUT_OF_WINDOW or DENY
+     */
+    public Verdict decide(int minuteOfDay) {
+        return restricted && !isOpen(minuteOfDay) ? Verdict.OUT_OF_WINDOW : Verdict.DENY;
+    }
+
+    public String getName() {
+        return relation.name();
+    }
+
+    public AccessRelationship getRelation() {
+        return relation;
+    }
+
+    /**
+     * A window in minutes since midnight, both ends included
+     */
+    public record Window(int start, int end) {
+        public Window(int startHour, int startMinute, int endHour, int endMinute) {
+            this(startHour * 60 + startMinute, endHour * 60 + endMinute);
+        }
+    }
+}
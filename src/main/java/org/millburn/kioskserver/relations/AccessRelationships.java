@@ -3,36 +3,82 @@ package org.millburn.kioskserver.relations;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
 import net.minidev.json.parser.JSONParser;
 import net.minidev.json.parser.ParseException;
-import org.millburn.kioskserver.LoadedMemory;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 
 /**
- * Stores all the access relations
+ * Stores all the access relations, each compiled into an {@link AccessPolicy}. The relations are
+ * never changed once they are loaded, new relations are loaded into a new object so that a check
+ * in never sees them half loaded.
  *
  * @author Alex Kolodkin, Keming Fei
  */
 public class AccessRelationships {
+    private static final String CREATE_WINDOWS_TABLE = "CREATE TABLE IF NOT EXISTS relation_windows ("
+            + "access_level int NOT NULL,"
+            + "start_hour int,"
+            + "start_minute int,"
+            + "end_hour int,"
+            + "end_minute int,"
+            + "KEY idx_relation_windows_level (access_level)"
+            + ");";
+
+    /**
+     * All the access relationships, compiled
+     */
+    private final Map<Integer, AccessPolicy> policies;
+
     /**
-     * All the access relationships
+     * Loads the set of relations from the database into memory, along with the extra windows in
+     * relation_windows
      */
-    private final HashMap<Integer, AccessRelationship> relations;
+    public AccessRelationships(JdbcTemplate jt) {
+        HashMap<Integer, List<AccessPolicy.Window>> windows = new HashMap<>();
+        SqlRowSet rs = jt.queryForRowSet("SELECT access_level, start_hour, start_minute, end_hour, end_minute FROM relation_windows");
+        while(rs.next()) {
+            windows.computeIfAbsent(rs.getInt(1), level -> new ArrayList<>())
+                    .add(new AccessPolicy.Window(rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5)));
+        }
+
+        HashMap<Integer, AccessPolicy> loaded = new HashMap<>();
+        rs = jt.queryForRowSet("SELECT * FROM relations");
+
+        while(rs.next()) {
+            AccessRelationship ar = new AccessRelationship(rs.getString(1), rs.getInt(2), rs.getInt(3),
+                    rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
+            loaded.put(ar.accessLevel(), new AccessPolicy(ar, windows.getOrDefault(ar.accessLevel(), List.of())));
+        }
+        this.policies = Map.copyOf(loaded);
+    }
+
     /**
-     * The object that will make using JDBC easier for us
+     * Creates relation_windows if it doesn't exist, databases from before it existed get an empty
+     * one. Runs once when the server starts, not on every load, since it commits and locks the
+     * table's metadata.
+     *
+     * @param jt the JdbcTemplate of the database
      */
-    private final JdbcTemplate jt;
-    private final LoadedMemory lm;
+    public static void createWindowsTable(JdbcTemplate jt) {
+        jt.execute(CREATE_WINDOWS_TABLE);
+    }
 
-    public AccessRelationships(LoadedMemory lm, JdbcTemplate jt) {
-        relations = new HashMap<>();
-        this.lm = lm;
-        this.jt = jt;
-        this.getRelationsFromDatabase();
+    /**
+     * Returns the compiled relation of an access level, which tokens keep so that a check in
+     * doesn't look it up
+     *
+     * @param level the access level
+     * @return the policy, or null if the access level does not exist
+     */
+    public AccessPolicy getPolicy(int level) {
+        return policies.get(level);
     }
 
     /**
@@ -42,7 +88,8 @@ public class AccessRelationships {
      * @return an AccessRelationship object
      */
     public AccessRelationship getRelation(int level) {
-        return relations.get(level);
+        AccessPolicy policy = policies.get(level);
+        return policy == null ? null : policy.getRelation();
     }
 
     /**
@@ -52,32 +99,18 @@ public class AccessRelationships {
      * @return a boolean saying whether it exists
      */
     public boolean containsRelation(int level) {
-        return relations.containsKey(level);
-    }
-
-    /**
-     * Loads the set of relations from the database into memory
-     */
-    public void getRelationsFromDatabase() {
-        relations.clear();
-
-        // Loads all the relations from the database
-        SqlRowSet rs = jt.queryForRowSet("SELECT * FROM relations");
-
-        while(rs.next()) {
-            AccessRelationship ar = new AccessRelationship(rs.getString(1), rs.getInt(2), rs.getInt(3),
-                    rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
-            relations.put(ar.accessLevel(), ar);
-        }
+        return policies.containsKey(level);
     }
 
     /**
-     * Loads a set of new relations from a file
+     * Replaces the relations in the database with the ones in a file. They only take effect once
+     * they are loaded again, see {@link org.millburn.kioskserver.LoadedMemory#uploadNewRelations}.
      *
+     * @param jt   the object that will make using JDBC easier for us
      * @param path the path to the file
      * @return whether the upload was a success or not
      */
-    public boolean uploadNewRelations(File path) {
+    public static boolean writeToDatabase(JdbcTemplate jt, File path) {
         // Verify that the file path is valid
         JSONParser parser = new JSONParser();
         Object obj;
@@ -100,6 +133,8 @@ public class AccessRelationships {
                 + "end_minute int signed,"
                 + "PRIMARY KEY (access_level)"
                 + ");");
+        jt.execute("DROP TABLE IF EXISTS relation_windows;");
+        jt.execute(CREATE_WINDOWS_TABLE);
 
         for(Object r : relations) {
             JSONObject relation = (JSONObject)r;
@@ -116,11 +151,22 @@ public class AccessRelationships {
                             + name + ", " + accessLevel + ", " + privilege + ", " + direction + ", "
                             + startHour + ", " + startMinute + ", " + endHour + ", " + endMinute
                             + ");");
+
+            // Levels that are open more than once a day list the other windows in Windows
+            JSONArray windows = (JSONArray)relation.get("Windows");
+            if(windows == null) {
+                continue;
+            }
+            for(Object w : windows) {
+                JSONObject window = (JSONObject)w;
+                jt.update("INSERT INTO relation_windows (access_level, start_hour, start_minute, end_hour, end_minute) VALUES (?, ?, ?, ?, ?);",
+                        accessLevel, window.getAsNumber("TimeStartHour").intValue(),
+                        window.getAsNumber("TimeStartMinute").intValue(),
+                        window.getAsNumber("TimeEndHour").intValue(),
+                        window.getAsNumber("TimeEndMinute").intValue());
+            }
         }
 
-        getRelationsFromDatabase();
-        this.lm.reloadAccessTokens();
         return true;
     }
-
 }
@@ -0,0 +1,390 @@
+package org.millburn.kioskserver.relations;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes accepted students into the daily attendance csv file of each relation. Lines are queued by
+ * the check in and written by a single background thread, which keeps one file open per relation
+ * and day and writes every line that arrived together in one write. Every student is only written
+ * once per file, which is checked in memory before anything is queued.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+public class AttendanceWriter {
+    /**
+     * How often the attendance files are forced to disk
+     */
+    public enum SyncPolicy {
+        /**
+         * Leaves it to the operating system
+         */
+        NONE,
+        /**
+         * After every group of lines is written
+         */
+        BATCH
+    }
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final Logger LOG = LogManager.getLogger(AttendanceWriter.class);
+
+    /**
+     * A line waiting to be written
+     */
+    private record Line(Path file, String text, Attendees attendees) {
+    }
+
+    /**
+     * The students in an attendance file. Guarded by its own lock, which also keeps the writer from
+     * forgetting the students while one of them is still being queued.
+     */
+    private static class Attendees {
+        private final LocalDate day;
+        private final IntSet ids = new IntSet();
+        /**
+         * Lines queued for the file that the writer hasn't written yet
+         */
+        private int pending;
+        /**
+         * Set when the writer forgets the students, a check in that still has them looks them up again
+         */
+        private boolean forgotten;
+
+        Attendees(LocalDate day) {
+            this.day = day;
+        }
+    }
+
+    /**
+     * A set of ints that doesn't box them, using open addressing
+     */
+    private static class IntSet {
+        /**
+         * Student ids are never this, so it marks an empty slot
+         */
+        private static final int EMPTY = Integer.MIN_VALUE;
+        private int[] slots = newSlots(64);
+        private int size;
+
+        private static int[] newSlots(int capacity) {
+            int[] slots = new int[capacity];
+            Arrays.fill(slots, EMPTY);
+            return slots;
+        }
+
+        /**
+         * Adds a value to the set
+         *
+         * @return false if the value was already in the set
+         */
+        boolean add(int value) {
+            if(value == EMPTY) {
+                return false;
+            }
+            int mask = slots.length - 1;
+            // Mixes all 32 bits, like StudentRoster, so tables past 65536 slots are still spread out
+            int h = value * 0x9E3779B9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while(slots[slot] != EMPTY) {
+                if(slots[slot] == value) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = value;
+            // Keeps the table at most half full
+            if(++size * 2 > slots.length) {
+                int[] old = slots;
+                slots = newSlots(old.length * 2);
+                size = 0;
+                for(int v : old) {
+                    if(v != EMPTY) {
+                        add(v);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * An attendance file that is being written to
+     *
+     * @param lastWritten the day the file was last written to, which is not the day of the file
+     *                    for night windows and backdated check ins
+     */
+    private record OpenFile(FileChannel channel, LocalDate lastWritten) {
+    }
+
+    /**
+     * The ids already in each attendance file that was used recently
+     */
+    private final Map<Path, Attendees> attendees = new ConcurrentHashMap<>();
+    private final BlockingQueue<Line> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    /**
+     * Only used by the writer thread
+     */
+    private final Map<Path, OpenFile> openFiles = new HashMap<>();
+    private final Path directory;
+    private final SyncPolicy syncPolicy;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    @Autowired
+    public AttendanceWriter(@Value("${kiosk.attendance.directory:.}") String directory,
+                            @Value("${kiosk.attendance.sync-policy:NONE}") SyncPolicy syncPolicy) {
+        this(directory, syncPolicy, true);
+    }
+
+    /**
+     * @param startWriter false to leave the lines queued, for tests
+     */
+    AttendanceWriter(String directory, SyncPolicy syncPolicy, boolean startWriter) {
+        this.directory = Path.of(directory);
+        this.syncPolicy = syncPolicy;
+        this.worker = new Thread(this::run, "attendance-writer");
+        if(startWriter) {
+            this.worker.start();
+        }
+    }
+
+    /**
+     * Returns the attendance file of a relation for a day, a new file is made every day
+     *
+     * @param relationName the name of the relation
+     * @param day          the day
+     * @return the path of the file
+     */
+    public Path fileFor(String relationName, LocalDate day) {
+        return directory.resolve(relationName + "-" + day.getMonthValue() + "." + day.getDayOfMonth() + "."
+                + day.getYear() + ".csv");
+    }
+
+    /**
+     * Queues a student to be written into a relation's attendance file, unless the student is
+     * already in it
+     *
+     * @param relationName the name of the relation
+     * @param day          the day of the check in
+     * @param studentName  the name of the student
+     * @param studentId    the id of the student
+     * @return whether the student was queued, false if the student was already written down
+     */
+    public boolean append(String relationName, LocalDate day, String studentName, int studentId) {
+        Path file = fileFor(relationName, day);
+        Attendees fileAttendees;
+        while(true) {
+            fileAttendees = attendeesOf(file, day);
+            synchronized(fileAttendees) {
+                if(fileAttendees.forgotten) {
+                    continue;
+                }
+                if(!fileAttendees.ids.add(studentId)) {
+                    return false;
+                }
+                fileAttendees.pending++;
+                break;
+            }
+        }
+
+        Line line = new Line(file, studentName + "," + studentId + System.lineSeparator(), fileAttendees);
+        if(queue.offer(line)) {
+            return true;
+        }
+
+        LOG.warn("Attendance queue is full, waiting for the writer");
+        try {
+            queue.put(line);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the students already in an attendance file. The first time a file is used, it is read
+     * so that the students written before a restart are known.
+     */
+    private Attendees attendeesOf(Path file, LocalDate day) {
+        Attendees existing = attendees.get(file);
+        if(existing != null) {
+            return existing;
+        }
+
+        return attendees.computeIfAbsent(file, f -> {
+            Attendees loaded = new Attendees(day);
+            if(Files.exists(f)) {
+                try(Stream<String> lines = Files.lines(f, StandardCharsets.UTF_8)) {
+                    lines.forEach(line -> {
+                        int comma = line.lastIndexOf(',');
+                        try {
+                            loaded.ids.add(Integer.parseInt(line.substring(comma + 1).trim()));
+                        } catch(NumberFormatException e) {
+                            // Not a student line
+                        }
+                    });
+                } catch(IOException | UncheckedIOException e) {
+                    LOG.error("Failed to read attendance file " + f, e);
+                }
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * Forgets the students of files from before yesterday, so a night window that is still going
+     * keeps the students of yesterday. The students of a file are only forgotten once all of its
+     * lines are written, so reading the file again later finds all of them.
+     *
+     * @param today the current day
+     */
+    void forgetAttendees(LocalDate today) {
+        LocalDate yesterday = today.minusDays(1);
+        Iterator<Attendees> it = attendees.values().iterator();
+        while(it.hasNext()) {
+            Attendees fileAttendees = it.next();
+            if(!fileAttendees.day.isBefore(yesterday)) {
+                continue;
+            }
+            synchronized(fileAttendees) {
+                if(fileAttendees.pending == 0) {
+                    fileAttendees.forgotten = true;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lines waiting to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<Line> batch = new ArrayList<>();
+        while(running || !queue.isEmpty()) {
+            try {
+                Line first = queue.poll(1, TimeUnit.SECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch(InterruptedException e) {
+                // Nothing interrupts the writer on purpose, keep going until shutdown
+            }
+            closeFilesNotWrittenSince(LocalDate.now());
+            forgetAttendees(LocalDate.now());
+        }
+        closeFilesNotWrittenSince(LocalDate.MAX);
+    }
+
+    /**
+     * Writes every line for the same file in a single write
+     */
+    private void write(List<Line> batch) {
+        Map<Path, StringBuilder> grouped = new LinkedHashMap<>();
+        for(Line line : batch) {
+            grouped.computeIfAbsent(line.file(), f -> new StringBuilder()).append(line.text());
+        }
+
+        LocalDate today = LocalDate.now();
+        for(Map.Entry<Path, StringBuilder> entry : grouped.entrySet()) {
+            try {
+                FileChannel channel = open(entry.getKey(), today);
+                ByteBuffer buffer = ByteBuffer.wrap(entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if(syncPolicy == SyncPolicy.BATCH) {
+                    channel.force(false);
+                }
+            } catch(IOException e) {
+                LOG.error("Failed to write attendance to " + entry.getKey() + ": " + entry.getValue(), e);
+            }
+        }
+
+        for(Line line : batch) {
+            synchronized(line.attendees()) {
+                line.attendees().pending--;
+            }
+        }
+    }
+
+    private FileChannel open(Path file, LocalDate today) throws IOException {
+        OpenFile openFile = openFiles.get(file);
+        if(openFile == null) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            openFile = new OpenFile(channel, today);
+            openFiles.put(file, openFile);
+        } else if(openFile.lastWritten().isBefore(today)) {
+            openFile = new OpenFile(openFile.channel(), today);
+            openFiles.put(file, openFile);
+        }
+        return openFile.channel();
+    }
+
+    /**
+     * Closes the files that weren't written to on a day, so a file that a night window still uses
+     * after midnight stays open until a day goes by without it
+     */
+    private void closeFilesNotWrittenSince(LocalDate day) {
+        Iterator<OpenFile> it = openFiles.values().iterator();
+        while(it.hasNext()) {
+            OpenFile openFile = it.next();
+            if(openFile.lastWritten().isBefore(day)) {
+                try {
+                    openFile.channel().close();
+                } catch(IOException e) {
+                    LOG.error("Failed to close attendance file", e);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes everything that is still queued and closes the files
+     */
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        try {
+            worker.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
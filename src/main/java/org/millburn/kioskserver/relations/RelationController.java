@@ -33,7 +33,7 @@ public class RelationController {
      */
     @GetMapping("/uploadRelations")
     public ResponseEntity<String> uploadRelations(@RequestParam(value = "path") String path) {
-        if(!this.lm.getAccessRelations().uploadNewRelations(new File(path))) {
+        if(!this.lm.uploadNewRelations(new File(path))) {
             return new ResponseEntity<>(HttpStatusCode.valueOf(422));
         }
         return new ResponseEntity<>("Uploaded relations", HttpStatusCode.valueOf(200));
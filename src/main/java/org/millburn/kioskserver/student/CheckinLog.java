@@ -0,0 +1,58 @@
+package org.millburn.kioskserver.student;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Logs one line per check in with everything about it, instead of a line per step. The logger is
+ * asynchronous (see log4j2-spring.xml), so the message is only put on a ring buffer by the request
+ * thread.
+ * <p>
+ * During busy periods check ins that went as expected can be sampled, every other outcome is
+ * always logged.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+public class CheckinLog {
+    private static final Logger LOG = LogManager.getLogger(CheckinLog.class);
+
+    /**
+     * Approved and not approved check ins are logged about once every this many times
+     */
+    private final int sampleEvery;
+
+    @Autowired
+    public CheckinLog(@Value("${kiosk.logging.checkin-sample-every:1}") int sampleEvery) {
+        this.sampleEvery = Math.max(sampleEvery, 1);
+    }
+
+    /**
+     * Logs a check in
+     *
+     * @param outcome     how the check in ended
+     * @param accessToken the token the kiosk sent
+     * @param kioskName   the name the kiosk sent
+     * @param studentId   the id the student entered, as it was sent
+     * @param prevStatus  the status of the student before, -1 if there is none
+     * @param newStatus   the status of the student after, -1 if there is none
+     * @param written     whether the student was written into the attendance file
+     */
+    public void log(CheckinMetrics.Outcome outcome, String accessToken, String kioskName, String studentId,
+                    int prevStatus, int newStatus, boolean written) {
+        if(!LOG.isInfoEnabled()) {
+            return;
+        }
+        boolean routine = outcome == CheckinMetrics.Outcome.APPROVED || outcome == CheckinMetrics.Outcome.NOT_APPROVED;
+        if(routine && sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return;
+        }
+        // The parameters are all immutable, so the message can be formatted on the logging thread
+        LOG.info("checkin outcome={} kiosk=\"{}\" student={} prev_status={} new_status={} written={} token={}",
+                outcome, kioskName, studentId, prevStatus, newStatus, written, accessToken);
+    }
+}
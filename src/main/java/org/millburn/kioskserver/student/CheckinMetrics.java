@@ -0,0 +1,145 @@
+package org.millburn.kioskserver.student;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.millburn.kioskserver.WebSocketHandler;
+import org.millburn.kioskserver.WriteBehindQueue;
+import org.millburn.kioskserver.kiosk.KioskWebSocketHandler;
+import org.millburn.kioskserver.relations.AttendanceWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times every stage of a check in and counts check ins by outcome and by kiosk, so that a slow
+ * morning can be traced to the stage that caused it. Every meter is created up front or cached, so
+ * recording only costs a clock read and an add.
+ * <p>
+ * kiosk-defaults.properties exposes them at /actuator/prometheus unless kiosk-server.properties
+ * sets management.endpoints.web.exposure.include itself.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+@PropertySource("classpath:kiosk-defaults.properties")
+public class CheckinMetrics {
+    /**
+     * The stages of a check in, in the order they run
+     */
+    public enum Stage {
+        TOKEN_LOOKUP, STUDENT_READ, RELATION_CHECK, CSV_WRITE, STATUS_UPDATE, RECORD_INSERT, BROADCAST
+    }
+
+    /**
+     * How a check in ended
+     */
+    public enum Outcome {
+        APPROVED, NOT_APPROVED, INVALID_STUDENT_ID, LATE_STUDENT, INVALID_TOKEN, DISABLED_TOKEN,
+        INVALID_ID_FORMAT, OUTSIDE_HOURS;
+
+        /**
+         * Returns the approval status the kiosk is sent for this outcome
+         *
+         * @return one of the CheckinResponse statuses, or null if the check in didn't get that far
+         */
+        public Byte approvalStatus() {
+            return switch(this) {
+                case APPROVED -> CheckinResponse.APPROVED;
+                case NOT_APPROVED -> CheckinResponse.NOT_APPROVED;
+                case INVALID_STUDENT_ID -> CheckinResponse.INVALID_STUDENT_ID;
+                case LATE_STUDENT -> CheckinResponse.LATE_STUDENT;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * Kiosk names come from the request, so past this many the rest are counted together
+     */
+    private static final int MAX_KIOSKS = 500;
+    private static final String OTHER_KIOSKS = "other";
+
+    private final MeterRegistry registry;
+    private final Timer[] stages = new Timer[Stage.values().length];
+    private final Counter[] outcomes = new Counter[Outcome.values().length];
+    private final Map<String, Counter> kiosks = new ConcurrentHashMap<>();
+
+    @Autowired
+    public CheckinMetrics(MeterRegistry registry, WriteBehindQueue writeBehind, AttendanceWriter attendanceWriter) {
+        this.registry = registry;
+        for(Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = Timer.builder("kiosk.checkin.stage")
+                    .description("Time spent in each stage of a check in")
+                    .tag("stage", stage.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+        for(Outcome outcome : Outcome.values()) {
+            outcomes[outcome.ordinal()] = Counter.builder("kiosk.checkin.outcomes")
+                    .description("Check ins by how they ended")
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+
+        Gauge.builder("kiosk.websocket.sessions", WebSocketHandler::getSessionCount)
+                .description("Open /liveRecords sessions")
+                .register(registry);
+        Gauge.builder("kiosk.websocket.kiosk_sessions", KioskWebSocketHandler::getSessionCount)
+                .description("Kiosks connected to /kiosk")
+                .register(registry);
+        Gauge.builder("kiosk.write_behind.queue.depth", writeBehind, WriteBehindQueue::getQueueDepth)
+                .description("Database writes waiting to be flushed")
+                .register(registry);
+        Gauge.builder("kiosk.attendance.queue.depth", attendanceWriter, AttendanceWriter::getQueueDepth)
+                .description("Attendance lines waiting to be written")
+                .register(registry);
+    }
+
+    /**
+     * Records the time of a stage that ran from start until now
+     *
+     * @param stage the stage that just finished
+     * @param start when the stage started, from System.nanoTime
+     * @return now, which is when the next stage starts
+     */
+    public long record(Stage stage, long start) {
+        long now = System.nanoTime();
+        stages[stage.ordinal()].record(now - start, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
+    /**
+     * Counts a check in by its outcome
+     *
+     * @param outcome how the check in ended
+     */
+    public void outcome(Outcome outcome) {
+        outcomes[outcome.ordinal()].increment();
+    }
+
+    /**
+     * Counts a check in by its outcome and its kiosk. Only called once the kiosk's token is known
+     * to be valid, so that random requests can't create a kiosk counter each.
+     *
+     * @param outcome   how the check in ended
+     * @param kioskName the name the kiosk sent
+     */
+    public void outcome(Outcome outcome, String kioskName) {
+        outcome(outcome);
+        Counter counter = kiosks.get(kioskName);
+        if(counter == null) {
+            counter = kiosks.computeIfAbsent(kiosks.size() < MAX_KIOSKS ? kioskName : OTHER_KIOSKS,
+                    name -> Counter.builder("kiosk.checkin.kiosks")
+                            .description("Check ins by kiosk")
+                            .tag("kiosk", name)
+                            .register(registry));
+        }
+        counter.increment();
+    }
+}
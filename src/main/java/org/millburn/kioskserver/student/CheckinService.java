@@ -0,0 +1,221 @@
+package org.millburn.kioskserver.student;
+
+import java.time.ZonedDateTime;
+import org.millburn.kioskserver.LoadedMemory;
+import org.millburn.kioskserver.Records;
+import org.millburn.kioskserver.WebSocketHandler;
+import org.millburn.kioskserver.WriteBehindQueue;
+import org.millburn.kioskserver.kiosk.AccessToken;
+import org.millburn.kioskserver.relations.AccessPolicy;
+import org.millburn.kioskserver.relations.AttendanceWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the scans sent by kiosks, shared by the HTTP check in endpoints and the kiosk websocket so
+ * that a scan ends the same way whichever one it came through
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+public class CheckinService {
+    /**
+     * Returned by {@link #parseId(String)} for ids that aren't integers
+     */
+    static final long INVALID_ID = Long.MIN_VALUE;
+    private final LoadedMemory lm;
+    /**
+     * Writes accepted students into the attendance csv files off the request thread
+     */
+    private final AttendanceWriter attendanceWriter;
+    /**
+     * Times the stages of every check in
+     */
+    private final CheckinMetrics metrics;
+    /**
+     * Logs one line per check in
+     */
+    private final CheckinLog checkinLog;
+    /**
+     * The status an accepted student moves to
+     */
+    private final StatusTransitions transitions;
+
+    @Autowired
+    public CheckinService(LoadedMemory lm, AttendanceWriter attendanceWriter, CheckinMetrics metrics,
+                          CheckinLog checkinLog, StatusTransitions transitions) {
+        this.lm = lm;
+        this.attendanceWriter = attendanceWriter;
+        this.metrics = metrics;
+        this.checkinLog = checkinLog;
+        this.transitions = transitions;
+    }
+
+    public CheckinMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public StatusTransitions getTransitions() {
+        return this.transitions;
+    }
+
+    /**
+     * Checks the token of a kiosk, counting and logging the check in if the token can't be used
+     *
+     * @param at          the token found for the access token, or null if there is none
+     * @param accessToken access token held by kiosk
+     * @param kioskName   name of the kiosk
+     * @param studentId   id the student entered, null if there isn't a single one
+     * @return INVALID_TOKEN or DISABLED_TOKEN if the token can't be used, or null if it can
+     */
+    public CheckinMetrics.Outcome rejectToken(AccessToken at, String accessToken, String kioskName, String studentId) {
+        if(at == null) {
+            this.metrics.outcome(CheckinMetrics.Outcome.INVALID_TOKEN);
+            this.checkinLog.log(CheckinMetrics.Outcome.INVALID_TOKEN, accessToken, kioskName, studentId, -1, -1, false);
+            return CheckinMetrics.Outcome.INVALID_TOKEN;
+        }
+
+        // If the token is disabled
+        if(at.getAccess() < 0) {
+            this.metrics.outcome(CheckinMetrics.Outcome.DISABLED_TOKEN, kioskName);
+            this.checkinLog.log(CheckinMetrics.Outcome.DISABLED_TOKEN, accessToken, kioskName, studentId, -1, -1, false);
+            return CheckinMetrics.Outcome.DISABLED_TOKEN;
+        }
+        return null;
+    }
+
+    /**
+     * Runs one scan from a kiosk whose token was already checked, and adds its database writes to
+     * a batch for the caller to submit
+     *
+     * @param at          the kiosk's token
+     * @param accessToken access token held by kiosk
+     * @param kioskName   name of the kiosk
+     * @param studentId   id the student entered
+     * @param currentTime when the student scanned
+     * @param writes      where the status update and record go
+     * @param broadcast   whether to push the record to the dashboards
+     * @param stageStart  when the scan started being processed, from System.nanoTime
+     * @return how the scan ended
+     */
+    public CheckinMetrics.Outcome scan(AccessToken at, String accessToken, String kioskName,
+                                       String studentId, ZonedDateTime currentTime, WriteBehindQueue.Batch writes,
+                                       boolean broadcast, long stageStart) {
+        // Attempts to parse the student id into an integer
+        long parsed = parseId(studentId);
+        if(parsed == INVALID_ID) {
+            this.metrics.outcome(CheckinMetrics.Outcome.INVALID_ID_FORMAT, kioskName);
+            this.checkinLog.log(CheckinMetrics.Outcome.INVALID_ID_FORMAT, accessToken, kioskName, studentId, -1, -1, false);
+            return CheckinMetrics.Outcome.INVALID_ID_FORMAT;
+        }
+        int id = (int) parsed;
+
+        // Looks the student up in memory instead of the database
+        StudentRoster roster = this.lm.getStudents();
+        int slot = roster.indexOf(id);
+        stageStart = this.metrics.record(CheckinMetrics.Stage.STUDENT_READ, stageStart);
+
+        // The relation was compiled and looked up when the token was loaded, so it is never missing
+        // even if the relations are reloaded during the scan
+        AccessPolicy policy = at.getPolicy();
+        int minuteOfDay = currentTime.getHour() * 60 + currentTime.getMinute();
+        AccessPolicy.Verdict verdict = slot == StudentRoster.NOT_FOUND ? policy.decide(minuteOfDay)
+                : policy.decide(roster.getPrivilegeType(slot), minuteOfDay);
+        stageStart = this.metrics.record(CheckinMetrics.Stage.RELATION_CHECK, stageStart);
+
+        CheckinMetrics.Outcome outcome;
+        int prevStatus;
+        int newStatus;
+        boolean accepted = false;
+        boolean written = false;
+
+        // Determines the response to the student sign in
+        if(verdict == AccessPolicy.Verdict.OUT_OF_WINDOW) {
+            prevStatus = slot == StudentRoster.NOT_FOUND ? -1 : roster.getStatus(slot);
+            this.metrics.outcome(CheckinMetrics.Outcome.OUTSIDE_HOURS, kioskName);
+            this.checkinLog.log(CheckinMetrics.Outcome.OUTSIDE_HOURS, accessToken, kioskName, studentId, prevStatus, prevStatus, false);
+            return CheckinMetrics.Outcome.OUTSIDE_HOURS;
+        } else if(slot == StudentRoster.NOT_FOUND) {
+            // Uses "fake" student data for logging the invalid sign in
+            outcome = CheckinMetrics.Outcome.INVALID_STUDENT_ID;
+            prevStatus = -1;
+            newStatus = -1;
+        } else if(verdict == AccessPolicy.Verdict.DENY) {
+            outcome = CheckinMetrics.Outcome.NOT_APPROVED;
+            // We don't change the status
+            prevStatus = roster.getStatus(slot);
+            newStatus = prevStatus;
+        } else {
+            outcome = CheckinMetrics.Outcome.APPROVED;
+            prevStatus = roster.getStatus(slot);
+            newStatus = transitions.next(prevStatus);
+            accepted = true;
+        }
+
+        // Relations that accept scans at any time only write attendance inside their window
+        if(policy.isOpen(minuteOfDay)) {
+            // Write student down in if the student was accepted, a new csv is made every day and
+            // students that are already in it are skipped
+            written = accepted && this.attendanceWriter.append(policy.getName(),
+                    policy.attendanceDay(currentTime.toLocalDate(), minuteOfDay), roster.getName(slot), id);
+            stageStart = this.metrics.record(CheckinMetrics.Stage.CSV_WRITE, stageStart);
+        }
+
+        // Update student status, only scans of the same student ever retry
+        if (accepted) {
+            prevStatus = roster.transition(slot, transitions);
+            newStatus = transitions.next(prevStatus);
+            writes.updateStatus(roster, slot);
+            stageStart = this.metrics.record(CheckinMetrics.Stage.STATUS_UPDATE, stageStart);
+        }
+
+        // Log the event to the database and push just the new record to the dashboards
+        Records record = writes.logRecord(id, prevStatus, newStatus, currentTime, kioskName);
+        this.lm.getRecentRecords().add(record);
+        this.lm.getRecordCounters().add(record);
+        stageStart = this.metrics.record(CheckinMetrics.Stage.RECORD_INSERT, stageStart);
+        if(broadcast) {
+            WebSocketHandler.broadcastRecord(record);
+            this.metrics.record(CheckinMetrics.Stage.BROADCAST, stageStart);
+        }
+        this.metrics.outcome(outcome, kioskName);
+        this.checkinLog.log(outcome, accessToken, kioskName, studentId, prevStatus, newStatus, written);
+        return outcome;
+    }
+
+    /**
+     * Parses a student id the way Integer.parseInt does, without throwing for the ids kiosks send
+     * that aren't numbers
+     *
+     * @param studentId the id the student entered
+     * @return the id, or INVALID_ID if it isn't an integer
+     */
+    static long parseId(String studentId) {
+        if(studentId == null || studentId.isEmpty()) {
+            return INVALID_ID;
+        }
+        int i = 0;
+        boolean negative = false;
+        char first = studentId.charAt(0);
+        if(first == '-' || first == '+') {
+            negative = first == '-';
+            i = 1;
+            if(studentId.length() == 1) {
+                return INVALID_ID;
+            }
+        }
+        long value = 0;
+        for(; i < studentId.length(); i++) {
+            char c = studentId.charAt(i);
+            if(c < '0' || c > '9') {
+                return INVALID_ID;
+            }
+            value = value * 10 + (c - '0');
+            if(value > (long) Integer.MAX_VALUE + 1) {
+                return INVALID_ID;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? INVALID_ID : value;
+    }
+}
@@ -0,0 +1,187 @@
+package org.millburn.kioskserver.student;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.millburn.kioskserver.LoadedMemory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+/**
+ * Imports a new set of students from a csv file. The file is streamed into a staging table in
+ * batches and the staging table is swapped with the students table in one step, so check ins always
+ * see a complete set of students.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+public class RosterImporter {
+    /**
+     * How many rows are validated and inserted together
+     */
+    private static final int BATCH_SIZE = 1000;
+    private static final String DB_INSERT_STAGING = "INSERT INTO `students_staging` (`id`, `Name`, `privilege_type`, `status`) VALUES (?, ?, ?, 1);";
+    private static final Logger LOG = LogManager.getLogger(RosterImporter.class);
+
+    public enum State {
+        IDLE, LOADING, SWAPPING, DONE, FAILED
+    }
+
+    /**
+     * The object that will make using JDBC easier for us
+     */
+    private final JdbcTemplate jt;
+    private final LoadedMemory lm;
+    /**
+     * Makes sure only one import runs at a time
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile State state = State.IDLE;
+    private final AtomicInteger rowsRead = new AtomicInteger();
+    private final AtomicInteger rowsLoaded = new AtomicInteger();
+    private final AtomicInteger rowsRejected = new AtomicInteger();
+
+    @Autowired
+    public RosterImporter(JdbcTemplate jt, LoadedMemory lm) {
+        Assert.notNull(jt, "JdbcTemplate must not be null");
+        this.jt = jt;
+        this.lm = lm;
+    }
+
+    /**
+     * Replaces every student with the students in a csv file, in the format
+     * Student #,Last Name,First Name,Privilege
+     *
+     * @param reader the csv file
+     * @return false if another import is already running
+     */
+    public boolean importRoster(Reader reader) throws IOException {
+        if(!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            rowsRead.set(0);
+            rowsLoaded.set(0);
+            rowsRejected.set(0);
+            state = State.LOADING;
+
+            // Stages the new students next to the current ones
+            jt.execute("DROP TABLE IF EXISTS students_staging;");
+            jt.execute("CREATE TABLE students_staging LIKE students;");
+
+            BufferedReader br = reader instanceof BufferedReader b ? b : new BufferedReader(reader);
+            Set<Integer> seenIds = new HashSet<>();
+            List<String> lines = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while((line = br.readLine()) != null) {
+                if(line.isBlank() || line.startsWith("Student #")) {
+                    continue;
+                }
+                lines.add(line);
+                if(lines.size() == BATCH_SIZE) {
+                    loadBatch(lines, seenIds);
+                    lines.clear();
+                }
+            }
+            loadBatch(lines, seenIds);
+
+            // Keeps the current students if the file had nothing usable in it
+            if(rowsLoaded.get() == 0) {
+                LOG.error("No valid students in the uploaded file, keeping the current students");
+                jt.execute("DROP TABLE students_staging;");
+                state = State.FAILED;
+                return true;
+            }
+
+            // RENAME TABLE swaps both tables in one step
+            state = State.SWAPPING;
+            jt.execute("DROP TABLE IF EXISTS students_old;");
+            // A flush that is already writing to the students table finishes before the rename,
+            // which waits for it
+            lm.replaceStudents(() -> jt.execute("RENAME TABLE students TO students_old, students_staging TO students;"));
+            jt.execute("DROP TABLE students_old;");
+
+            LOG.info("Imported " + rowsLoaded.get() + " students, rejected " + rowsRejected.get() + " rows");
+            state = State.DONE;
+            return true;
+        } catch(RuntimeException | IOException e) {
+            LOG.error("Failed to import students", e);
+            state = State.FAILED;
+            throw e;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Validates a batch of rows in parallel and inserts the valid ones into the staging table
+     */
+    private void loadBatch(List<String> lines, Set<Integer> seenIds) {
+        if(lines.isEmpty()) {
+            return;
+        }
+        rowsRead.addAndGet(lines.size());
+
+        List<Object[]> parsed = lines.parallelStream().map(RosterImporter::parseRow).toList();
+        List<Object[]> valid = new ArrayList<>(parsed.size());
+        for(Object[] row : parsed) {
+            // Rejects bad rows and students that were already in the file
+            if(row == null || !seenIds.add((Integer) row[0])) {
+                rowsRejected.incrementAndGet();
+                continue;
+            }
+            valid.add(row);
+        }
+
+        if(!valid.isEmpty()) {
+            jt.batchUpdate(DB_INSERT_STAGING, valid);
+            rowsLoaded.addAndGet(valid.size());
+        }
+    }
+
+    /**
+     * Turns a csv row into the id, name and privilege of a student
+     *
+     * @return the insert parameters, or null if the row is invalid
+     */
+    private static Object[] parseRow(String line) {
+        String[] columns = line.split(",");
+        if(columns.length < 4) {
+            return null;
+        }
+        try {
+            int id = Integer.parseInt(columns[0].trim());
+            int privilege = Integer.parseInt(columns[3].trim());
+            return new Object[] {id, columns[2].trim() + " " + columns[1].trim(), privilege};
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the progress of the current or last import as JSON
+     */
+    public String getProgress() {
+        return "{\"state\":\"" + state + "\",\"rows_read\":" + rowsRead.get() + ",\"rows_loaded\":"
+                + rowsLoaded.get() + ",\"rows_rejected\":" + rowsRejected.get() + "}";
+    }
+}
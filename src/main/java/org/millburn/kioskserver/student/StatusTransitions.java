@@ -0,0 +1,93 @@
+package org.millburn.kioskserver.student;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The status a student moves to when a kiosk accepts their scan, as a table from each status to
+ * the next one. The default is the signed in/signed out toggle, 0 to 1 and anything else to 0.
+ * <p>
+ * The table is set with kiosk.status.transitions as from:to pairs, for example
+ * {@code 0:1,1:2,2:0} for three statuses that follow one another, and
+ * kiosk.status.transitions-default for statuses that aren't in it.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+@Component
+public class StatusTransitions {
+    /**
+     * The next status of every status from 0 to next.length - 1
+     */
+    private final int[] next;
+    /**
+     * The next status of every other status
+     */
+    private final int otherwise;
+    /**
+     * Every status that appears in the table
+     */
+    private final Set<Integer> statuses;
+
+    @Autowired
+    public StatusTransitions(@Value("${kiosk.status.transitions:0:1,1:0}") String table,
+                             @Value("${kiosk.status.transitions-default:0}") int otherwise) {
+        if(otherwise < 0) {
+            throw new IllegalArgumentException("Status out of range: " + otherwise);
+        }
+        this.otherwise = otherwise;
+        HashSet<Integer> known = new HashSet<>();
+        known.add(otherwise);
+        int[] parsed = new int[0];
+        for(String pair : table.split(",")) {
+            if(pair.isBlank()) {
+                continue;
+            }
+            String[] fromTo = pair.trim().split(":");
+            if(fromTo.length != 2) {
+                throw new IllegalArgumentException("Invalid status transition: " + pair);
+            }
+            int from = Integer.parseInt(fromTo[0].trim());
+            int to = Integer.parseInt(fromTo[1].trim());
+            if(from < 0 || from > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Status out of range: " + from);
+            }
+            // Negative statuses are what check in logs use for unknown students
+            if(to < 0) {
+                throw new IllegalArgumentException("Status out of range: " + to);
+            }
+            if(from >= parsed.length) {
+                int length = parsed.length;
+                parsed = Arrays.copyOf(parsed, from + 1);
+                Arrays.fill(parsed, length, parsed.length, otherwise);
+            }
+            parsed[from] = to;
+            known.add(from);
+            known.add(to);
+        }
+        this.next = parsed;
+        this.statuses = Set.copyOf(known);
+    }
+
+    /**
+     * Returns the status a student moves to from a status
+     *
+     * @param status the status of the student
+     * @return the next status
+     */
+    public int next(int status) {
+        return status >= 0 && status < next.length ? next[status] : otherwise;
+    }
+
+    /**
+     * Returns whether a status is one of the statuses in the table
+     *
+     * @param status the status
+     */
+    public boolean isStatus(int status) {
+        return statuses.contains(status);
+    }
+}
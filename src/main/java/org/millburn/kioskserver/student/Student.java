@@ -4,7 +4,7 @@ import lombok.Getter;
 import lombok.Setter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.millburn.kioskserver.Records;
+import org.millburn.kioskserver.CompiledFilter;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -134,22 +134,38 @@ public class Student {
             return filters.toArray(new Filter[0]);
         }
 
-        public static String generateSQL(Filter[] filters) {
+        /**
+         * Turns filters into a WHERE clause with placeholders and the values to bind to them
+         *
+         * @param filters the filters, ALL filters are ignored
+         * @return the compiled filter
+         */
+        public static CompiledFilter compile(Filter[] filters) {
             // ignore ALL filters
             Filter[] filtered = Arrays.stream(filters).filter(filter -> filter.getType() != FilterType.ALL).toArray(Filter[]::new);
             if (filtered.length == 0) {
-                return " ";
+                return new CompiledFilter(" ", new Object[0]);
             }
-            ArrayList<String> filterStrings = new ArrayList<>();
-            for (Filter filter : filtered) {
-                filterStrings.add(filter.toString());
+            // Only the columns and comparators decide the clause, the values are bound
+            StringBuilder shape = new StringBuilder("students");
+            Object[] params = new Object[filtered.length];
+            for (int i = 0; i < filtered.length; i++) {
+                shape.append('|').append(filtered[i].getType().ordinal()).append(':').append(filtered[i].getComparator().ordinal());
+                params[i] = filtered[i].getValue();
             }
-            return " WHERE " + String.join(" AND ", filterStrings) + " ";
+            String where = CompiledFilter.template(shape.toString(), () -> {
+                ArrayList<String> filterStrings = new ArrayList<>();
+                for (Filter filter : filtered) {
+                    filterStrings.add(filter.getType() + " " + filter.getComparator() + " ?");
+                }
+                return " WHERE " + String.join(" AND ", filterStrings) + " ";
+            });
+            return new CompiledFilter(where, params);
         }
 
         @Override
         public String toString() {
-            // return SQL
+            // return SQL, only for reading, queries should use compile so that values are bound
             if (this.type == FilterType.ALL) {
                 // In your code, you should filter out ALL filters
                 throw new UnsupportedOperationException("Cannot convert ALL to SQL WHERE clause");
@@ -1,30 +1,28 @@
 package org.millburn.kioskserver.student;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.BufferedWriter;
-import java.io.File;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.io.PrintWriter;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
-import com.nimbusds.jose.shaded.gson.Gson;
 import lombok.extern.java.Log;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.millburn.kioskserver.CompiledFilter;
 import org.millburn.kioskserver.LoadedMemory;
-import org.millburn.kioskserver.Records;
+import org.millburn.kioskserver.PageCursor;
+import org.millburn.kioskserver.SecondClock;
 import org.millburn.kioskserver.WebSocketHandler;
+import org.millburn.kioskserver.WriteBehindQueue;
 import org.millburn.kioskserver.kiosk.AccessToken;
-import org.millburn.kioskserver.relations.AccessRelationship;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.ResponseEntity;
@@ -32,6 +30,8 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -43,30 +43,32 @@ import org.springframework.web.bind.annotation.RestController;
 @RestController
 public class StudentController {
     /**
-     * We find the student by studentId, then we lock the row completely, then we read the rest of
-     * the attributes
+     * The object that will make using JDBC easier for us
      */
-    private static final String DB_GET_STUDENT_BY_ID = "SELECT * FROM students WHERE id = ? FOR UPDATE;";
+    private final JdbcTemplate jt;
+    private static final Logger LOG = LogManager.getLogger(StudentController.class);
     /**
-     * Update student's status by student ID
+     * The most scans a kiosk can send in one batch
      */
-    private static final String DB_SET_STUDENT_STATUS_BY_ID = "UPDATE students set status = ? WHERE id = ?;";
+    private static final int MAX_BATCH_SIZE = 1000;
     /**
-     * Logs student transaction into record
+     * A check in can only end a handful of ways, and responses can't be changed once built, so
+     * they are built once and shared instead of encoded for every scan
      */
-    private static final String DB_LOG_TRANSACTION = "INSERT INTO `record` (`id`, `prev_status`, `new_status`, `date`, `kiosk_name`) VALUES (?, ?, ?, ?, ?);";
-
+    private static final ResponseEntity<String> FORBIDDEN = new ResponseEntity<>(HttpStatusCode.valueOf(403));
+    private static final ResponseEntity<String> INVALID_ID_FORMAT = new ResponseEntity<>(HttpStatusCode.valueOf(422));
+    private static final ResponseEntity<String> OUTSIDE_HOURS = new ResponseEntity<>(
+            "The sign in is outside of the kiosk active time!", HttpStatusCode.valueOf(200));
+    private static final ResponseEntity<String>[] APPROVAL_RESPONSES = approvalResponses();
+    private final LoadedMemory lm;
     /**
-     * The object that will make using JDBC easier for us
+     * Writes status updates and records to the database off the request thread
      */
-    private final JdbcTemplate jt;
+    private final WriteBehindQueue writeBehind;
     /**
-     * The object that will make converting things into JSON easier for us
+     * Runs the scans of the check in endpoints
      */
-    private final ObjectMapper om;
-    private static final Logger LOG = LogManager.getLogger(StudentController.class);
-    private final LoadedMemory lm;
-    private final DateTimeFormatter dtf;
+    private final CheckinService checkins;
 
 
     /**
@@ -75,30 +77,14 @@ public class StudentController {
      * @param jt the object that will make using JDBC easier for us
      */
     @Autowired
-    public StudentController(JdbcTemplate jt, LoadedMemory lm) {
+    public StudentController(JdbcTemplate jt, LoadedMemory lm, WriteBehindQueue writeBehind,
+            CheckinService checkins) {
         // ensure jt is not null
         Assert.notNull(jt, "JdbcTemplate must not be null");
         this.jt = jt;
-        this.om = new ObjectMapper();
         this.lm = lm;
-        this.dtf = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy");
-    }
-
-    /**
-     * a method to extract a ResultSet into a Student
-     *
-     * @return a student or null if rs is empty
-     */
-    private static Student extractStudentData(ResultSet rs) throws SQLException {
-        // checks if the ResultSet is empty
-        if(!rs.isBeforeFirst()) {
-            return null;
-        }
-
-        // Gets the first (and only) row returned
-        rs.next();
-        return new Student(rs.getInt("id"), rs.getString("name"), rs.getInt("privilege_type"),
-                rs.getInt("status"));
+        this.writeBehind = writeBehind;
+        this.checkins = checkins;
     }
 
     /**
@@ -115,128 +101,131 @@ public class StudentController {
     @GetMapping("/checkin")
     public ResponseEntity<String> checkIn(@RequestParam(value = "access_token") String accessToken,
             @RequestParam(value = "kiosk_name") String kioskName,
-            @RequestParam(value = "student_id") String studentId) throws JsonProcessingException {
-        LOG.info("-----------------------------");
-        LOG.info("New checkin transaction");
-        LOG.info("Access Token: " + accessToken);
-        LOG.info("Kiosk Name: " + kioskName);
-        LOG.info("Student ID: " + studentId);
-
+            @RequestParam(value = "student_id") String studentId) {
+        long stageStart = System.nanoTime();
         AccessToken at = this.lm.getAccessTokens().getTokenInfo(accessToken);
-        if(at == null) {
-            LOG.info("Invalid access token, denied");
-            return new ResponseEntity<>(HttpStatusCode.valueOf(403));
-        }
-
-        // If the token is disabled
-        if(at.getAccess() < 0) {
-            LOG.info("Access token is disabled");
-            // TODO change this response so that the kiosk knows to disable itself
-            return new ResponseEntity<>(HttpStatusCode.valueOf(403));
+        if(this.checkins.rejectToken(at, accessToken, kioskName, studentId) != null) {
+            // Kiosks connected to /kiosk are also pushed an event when their token is disabled
+            return FORBIDDEN;
         }
+        stageStart = this.checkins.getMetrics().record(CheckinMetrics.Stage.TOKEN_LOOKUP, stageStart);
 
-        Student s;
+        WriteBehindQueue.Batch writes = this.writeBehind.newBatch();
+        CheckinMetrics.Outcome outcome = this.checkins.scan(at, accessToken, kioskName, studentId,
+                SecondClock.now(), writes, true, stageStart);
+        this.writeBehind.submit(writes);
 
-        // Attempts to parse the student id into an integer and request it from the database
-        try {
-            s = this.jt.query(DB_GET_STUDENT_BY_ID, StudentController::extractStudentData,
-                    Integer.parseInt(studentId));
-        } catch(NumberFormatException e) {
-            LOG.info("Invalid student id characters, id: " + studentId);
+        if(outcome == CheckinMetrics.Outcome.INVALID_ID_FORMAT) {
             // Unprocessable Entity, the student id format is not correct
-            return new ResponseEntity<>(HttpStatusCode.valueOf(422));
+            return INVALID_ID_FORMAT;
         }
+        if(outcome == CheckinMetrics.Outcome.OUTSIDE_HOURS) {
+            // If the sign in is not within the time interval of the kiosk
+            // TODO add response that tells kiosk app to say that the sign in is outside of working time
+            return OUTSIDE_HOURS;
+        }
+        return APPROVAL_RESPONSES[outcome.approvalStatus()];
+    }
 
-        CheckinResponse checkinResponse;
-        int newStatus;
+    @SuppressWarnings("unchecked")
+    private static ResponseEntity<String>[] approvalResponses() {
+        ResponseEntity<String>[] responses = new ResponseEntity[4];
+        for(byte status = 0; status < responses.length; status++) {
+            responses[status] = new ResponseEntity<>(CheckinResponse.json(status), HttpStatusCode.valueOf(200));
+        }
+        return responses;
+    }
 
-        /* Assumes that the kiosk has a valid access level, otherwise it will crash
-            This should never be an issue as the adding kiosk function should make sure that the kiosk
-            has a valid access level. */
-        AccessRelationship ar = this.lm.getAccessRelations().getRelation(at.getAccess());
-        boolean accepted = false;
+    /**
+     * A scan buffered by a kiosk
+     *
+     * @param studentId the id the student entered
+     * @param scannedAt when it was scanned, in milliseconds since the epoch, or null for now
+     */
+    public record BatchScan(@JsonProperty("student_id") String studentId, @JsonProperty("scanned_at") Long scannedAt) {
+    }
 
-        // Determines the response to the student sign in
-        if(s != null && !ar.accept(s.getPrivilegeType())) {
-            LOG.info("Student denied");
-            checkinResponse = new CheckinResponse(CheckinResponse.NOT_APPROVED);
-            // We don't change the status
-            newStatus = s.getStatus();
-        } else if(s != null) {
-            LOG.info("Student partially accepted");
-            checkinResponse = new CheckinResponse(CheckinResponse.APPROVED);
-            // TODO implement better status'
-            newStatus = s.getStatus() == 0 ? 1 : 0;
-            accepted = true;
-        } else {
-            LOG.info("Invalid student id");
-            // Creates "fake" student data for logging the invalid sign in
-            checkinResponse = new CheckinResponse(CheckinResponse.INVALID_STUDENT_ID);
-            // We know that parsing the id as an integer can't error because we would have caught it earlier
-            s = new Student(Integer.parseInt(studentId), "", -1, -1);
-            newStatus = -1;
+    /**
+     * POST /checkin/batch?access_token=...&kiosk_name=...
+     * <p>
+     * Runs the scans a kiosk buffered while it was offline, in the order they were scanned. The
+     * body is a JSON array such as [{"student_id":"12345","scanned_at":1700312462000}, ...], and
+     * every scan is checked against the kiosk's hours at the time it was scanned. The token is
+     * checked once and the writes of all the scans go to the database in one transaction.
+     *
+     * @param accessToken access token held by kiosk
+     * @param kioskName   name of the kiosk
+     * @param scans       the scans, oldest first
+     * @return a JSON array with the result of every scan in the same order, either
+     * {"approval_status":...} or {"error":...}
+     */
+    @PostMapping(value = "/checkin/batch", produces = "application/json")
+    public ResponseEntity<String> checkInBatch(@RequestParam(value = "access_token") String accessToken,
+            @RequestParam(value = "kiosk_name") String kioskName,
+            @RequestBody BatchScan[] scans) {
+        long stageStart = System.nanoTime();
+        AccessToken at = this.lm.getAccessTokens().getTokenInfo(accessToken);
+        if(this.checkins.rejectToken(at, accessToken, kioskName, null) != null) {
+            return FORBIDDEN;
         }
+        if(scans.length > MAX_BATCH_SIZE) {
+            return new ResponseEntity<>("{\"error\":\"At most " + MAX_BATCH_SIZE + " scans per batch\"}",
+                    HttpStatusCode.valueOf(413));
+        }
+        stageStart = this.checkins.getMetrics().record(CheckinMetrics.Stage.TOKEN_LOOKUP, stageStart);
 
-        // TODO prevent double write of name into csv file (CAN CHECK WITH STATUSES)
-        ZonedDateTime currentTime = ZonedDateTime.now(ZoneId.systemDefault());
-        // Checks if the kiosk is within its open time
-        // Note: relations don't work if the time interval goes past midnight
-        int startInMinutes = ar.startHour() * 60 + ar.startMinute();
-        int endInMinutes = ar.endHour() * 60 + ar.endMinute();
-        int timeInMinutes = currentTime.getHour() * 60 + currentTime.getMinute();
-        if(startInMinutes <= timeInMinutes && endInMinutes >= timeInMinutes) {
-            try {
-                // Create new csv every day
-                File csvOutputFile = new File(
-                        "./" + ar.name() + "-" + currentTime.getMonthValue() + "." + currentTime.getDayOfMonth() + "."
-                                + currentTime.getYear() + ".csv");
-
-                csvOutputFile.createNewFile();
+        ZonedDateTime now = SecondClock.now();
+        long nowMillis = now.toInstant().toEpochMilli();
+        // Pushing every record of a large batch would overflow the dashboards' outboxes
+        boolean broadcastEach = scans.length <= WebSocketHandler.SNAPSHOT_SIZE;
+        WriteBehindQueue.Batch writes = this.writeBehind.newBatch();
+        StringBuilder body = new StringBuilder(scans.length * 24 + 2).append('[');
+        for(int i = 0; i < scans.length; i++) {
+            BatchScan scan = scans[i];
+            ZonedDateTime scannedAt = now;
+            // A kiosk clock that runs ahead can't put scans in the future
+            if(scan != null && scan.scannedAt() != null && scan.scannedAt() < nowMillis) {
+                scannedAt = ZonedDateTime.ofInstant(Instant.ofEpochMilli(scan.scannedAt()), ZoneId.systemDefault());
+            }
+            CheckinMetrics.Outcome outcome = this.checkins.scan(at, accessToken, kioskName,
+                    scan == null ? null : scan.studentId(), scannedAt, writes, broadcastEach,
+                    i == 0 ? stageStart : System.nanoTime());
 
-                // Write student down in if the student was accepted
-                if (accepted) {
-                    LOG.info("Student written down");
-                    FileWriter myWriter = new FileWriter(csvOutputFile, true);
-                    BufferedWriter bw = new BufferedWriter(myWriter);
-                    bw.append(s.getName()).append(",").append(String.valueOf(s.getId()));
-                    bw.newLine();
-                    bw.close();
-                }
-            } catch(IOException e) {
-                throw new RuntimeException(e);
+            if(i > 0) {
+                body.append(',');
+            }
+            if(outcome == CheckinMetrics.Outcome.INVALID_ID_FORMAT) {
+                body.append("{\"error\":\"invalid_student_id_format\"}");
+            } else if(outcome == CheckinMetrics.Outcome.OUTSIDE_HOURS) {
+                body.append("{\"error\":\"outside_active_time\"}");
+            } else {
+                body.append(CheckinResponse.json(outcome.approvalStatus()));
             }
-        } else if (ar.startHour() != -1){
-            LOG.info("Sign in not in time interval");
-            // If the sign in is not within the time interval of the kiosk
-            // TODO add response that tells kiosk app to say that the sign in is outside of working time
-             return new ResponseEntity<>("The sign in is outside of the kiosk active time!",
-                    HttpStatusCode.valueOf(200));
         }
-
-        // Update student status
-        if (accepted) {
-            LOG.info("Student fully accepted");
-            this.jt.update(DB_SET_STUDENT_STATUS_BY_ID, newStatus, s.getId());
+        this.writeBehind.submit(writes);
+        if(!broadcastEach) {
+            WebSocketHandler.broadcastSnapshot(this.lm.getRecentRecords().latest(WebSocketHandler.SNAPSHOT_SIZE));
         }
-
-        // Log the event to the database
-        this.jt.update(DB_LOG_TRANSACTION, s.getId(), s.getStatus(), newStatus,
-                this.dtf.format(currentTime), kioskName);
-        List<Records> records = WebSocketHandler.getRecords();
-        String json = new Gson().toJson(records);
-        WebSocketHandler.broadcast(json);
-        return new ResponseEntity<>(this.om.writeValueAsString(checkinResponse),
-                HttpStatusCode.valueOf(200));
+        return new ResponseEntity<>(body.append(']').toString(), HttpStatusCode.valueOf(200));
     }
 
+    /**
+     * /getStudents?pageSize=...&after=...
+     * <p>
+     * Lists students by descending id. Pages can be picked with page, or with the after/before
+     * cursors from the X-Cursor-After/X-Cursor-Before headers of the previous response, which stay
+     * fast no matter how deep the page is.
+     */
     @GetMapping(value = "/getStudents", produces = "application/json")
-    @CrossOrigin(origins = "*")
+    @CrossOrigin(origins = "*", exposedHeaders = {PageCursor.AFTER_HEADER, PageCursor.BEFORE_HEADER})
     public ResponseEntity<String> getStudents(
             @RequestParam(required = false, defaultValue = "0") String page,
             @RequestParam(required = false, defaultValue = "5") String pageSize,
             @RequestParam(required = false, defaultValue = "") List<String> filterBy,
             @RequestParam(required = false, defaultValue = "") List<String> filterValue,
-            @RequestParam(required = false, defaultValue = "") List<String> filterComparator
+            @RequestParam(required = false, defaultValue = "") List<String> filterComparator,
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) String before
     ) {
         int pageInt;
         int pageSizeInt;
@@ -262,21 +251,59 @@ public class StudentController {
             }
             LOG.warn("FilterComparator and FilterValue size mismatch, filling with equals");
         }
-        Records.Filter[] filters = Records.Filter.parseFilters(filterBy.toArray(new String[0]), filterValue.toArray(new String[0]), filterComparator.toArray(new String[0]));
+        Integer afterId;
+        Integer beforeId;
+        try {
+            afterId = PageCursor.decode(after);
+            beforeId = PageCursor.decode(before);
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid cursor: " + after + ", " + before);
+            return new ResponseEntity<>("{\"error\":\"Invalid cursor\"}", HttpStatusCode.valueOf(400));
+        }
+        if (afterId != null && beforeId != null) {
+            LOG.error("Both after and before cursors given");
+            return new ResponseEntity<>("{\"error\":\"Only one of after and before can be given\"}", HttpStatusCode.valueOf(400));
+        }
+        Student.Filter[] filters = Student.Filter.parseFilters(filterBy.toArray(new String[0]), filterValue.toArray(new String[0]), filterComparator.toArray(new String[0]));
+
+        // A cursor seeks straight to its page through the primary key instead of skipping rows
+        String order = "DESC";
+        boolean seek = false;
+        if (afterId != null || beforeId != null) {
+            filters = Arrays.copyOf(filters, filters.length + 1);
+            if (afterId != null) {
+                filters[filters.length - 1] = new Student.Filter(Student.FilterType.ID, afterId, Student.FilterComparator.LESS_THAN);
+            } else {
+                filters[filters.length - 1] = new Student.Filter(Student.FilterType.ID, beforeId, Student.FilterComparator.GREATER_THAN);
+                // Walks up from the cursor, the page is flipped back to descending ids below
+                order = "ASC";
+            }
+            seek = true;
+        }
 
         //noinspection SqlResolve (SQL is valid, IntelliJ just doesn't properly parse the concatenation of the SQL statements and returned string from the function)
-        String sql = "SELECT * FROM students" + Records.Filter.generateSQL(filters) + "ORDER BY id DESC LIMIT " + pageSizeInt + " OFFSET " + (pageInt * pageSizeInt);
+        CompiledFilter compiled = Student.Filter.compile(filters);
+        String sql = "SELECT * FROM students" + compiled.where() + "ORDER BY id " + order + (seek ? " LIMIT ?" : " LIMIT ? OFFSET ?");
+        Object[] params = seek ? compiled.paramsWith(pageSizeInt) : compiled.paramsWith(pageSizeInt, pageInt * pageSizeInt);
 
         //noinspection SqlSourceToSinkFlow
-        List<Map<String, Object>> rows = jt.queryForList(sql);
+        List<Map<String, Object>> rows = jt.queryForList(sql, params);
         List<Student> students = rows.stream().map(row -> new Student(
                 (int) row.get("id"),
                 (String) row.get("Name"),
                 (int) row.get("privilege_type"),
                 (int) row.get("status")
-        )).toList();
+        )).collect(Collectors.toCollection(ArrayList::new));
+        if (beforeId != null) {
+            Collections.reverse(students);
+        }
 
-        return new ResponseEntity<>(students.toString(), HttpStatusCode.valueOf(200));
+        if (students.isEmpty()) {
+            return new ResponseEntity<>(students.toString(), HttpStatusCode.valueOf(200));
+        }
+        return new ResponseEntity<>(students.toString(),
+                PageCursor.headers(students.get(0).getId(), students.get(students.size() - 1).getId()),
+                HttpStatusCode.valueOf(200));
     }
 
     @GetMapping(value = "setStudentStatus", produces = "application/json")
@@ -285,11 +312,19 @@ public class StudentController {
         try {
             int idInt = Integer.parseInt(id);
             int statusInt = Integer.parseInt(status);
-            if (statusInt < 0 || statusInt > 1) {
+            if (!this.checkins.getTransitions().isStatus(statusInt)) {
                 LOG.error("Invalid status: " + status);
                 return new ResponseEntity<>("{\"error\":\"Invalid status\"}", HttpStatusCode.valueOf(400));
             }
-            jt.update("UPDATE students SET status = ? WHERE id = ?", statusInt, idInt);
+            // Goes through the write-behind queue so it can't be overwritten by an older queued check in
+            StudentRoster roster = lm.getStudents();
+            int slot = roster.indexOf(idInt);
+            if (slot == StudentRoster.NOT_FOUND) {
+                writeBehind.updateStatus(idInt, statusInt);
+            } else {
+                roster.setStatus(slot, statusInt);
+                writeBehind.updateStatus(roster, slot);
+            }
             return new ResponseEntity<>("{\"success\":\"true\"}", HttpStatusCode.valueOf(200));
         } catch (NumberFormatException e) {
             LOG.error("Invalid id or status: " + id + ", " + status);
@@ -308,6 +343,7 @@ public class StudentController {
                 return new ResponseEntity<>("{\"error\":\"Invalid privilege\"}", HttpStatusCode.valueOf(400));
             }
             jt.update("UPDATE students SET privilege_type = ? WHERE id = ?", privilegeInt, idInt);
+            lm.getStudents().setPrivilegeTypeById(idInt, privilegeInt);
             return new ResponseEntity<>("{\"success\":\"true\"}", HttpStatusCode.valueOf(200));
         } catch (NumberFormatException e) {
             LOG.error("Invalid id or privilege: " + id + ", " + privilege);
@@ -0,0 +1,241 @@
+package org.millburn.kioskserver.student;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+/**
+ * Contains every student from the database in memory so that a check in never has to read the
+ * students table. Students are stored in parallel primitive arrays indexed by an open addressing
+ * hash of the student id, so the roster does not allocate an object per student or per field.
+ *
+ * @author Alex Kolodkin, Keming Fei
+ */
+public class StudentRoster {
+    /**
+     * Returned by {@link #indexOf(int)} when the student id is not in the roster
+     */
+    public static final int NOT_FOUND = -1;
+    /**
+     * Marks an empty slot in the id table, no student can have this id
+     */
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final Logger LOG = LogManager.getLogger(StudentRoster.class);
+
+    /**
+     * mirrors id from the database, EMPTY for unused slots
+     */
+    private final int[] ids;
+    /**
+     * mirrors name from the database
+     */
+    private final String[] names;
+    /**
+     * mirrors privilege_type from the database
+     */
+    private final AtomicIntegerArray privilegeTypes;
+    /**
+     * mirrors status from the database
+     */
+    private final AtomicIntegerArray statuses;
+    /**
+     * Used instead of a modulo to turn a hash into a slot, the table size is always a power of two
+     */
+    private final int mask;
+    /**
+     * The number of students in the roster
+     */
+    private final int size;
+    /**
+     * Set once the roster has been replaced by an import, see {@link #retire()}
+     */
+    private volatile boolean retired;
+
+    public StudentRoster(JdbcTemplate jt) {
+        // Loads all the students from the database into temporary arrays
+        int count = 0;
+        int[] loadedIds = new int[1024];
+        String[] loadedNames = new String[1024];
+        int[] loadedPrivileges = new int[1024];
+        int[] loadedStatuses = new int[1024];
+        SqlRowSet rs = jt.queryForRowSet("SELECT id, Name, privilege_type, status FROM students");
+
+        while(rs.next()) {
+            if(count == loadedIds.length) {
+                int newLength = loadedIds.length * 2;
+                loadedIds = Arrays.copyOf(loadedIds, newLength);
+                loadedNames = Arrays.copyOf(loadedNames, newLength);
+                loadedPrivileges = Arrays.copyOf(loadedPrivileges, newLength);
+                loadedStatuses = Arrays.copyOf(loadedStatuses, newLength);
+            }
+            loadedIds[count] = rs.getInt(1);
+            loadedNames[count] = rs.getString(2);
+            loadedPrivileges[count] = rs.getInt(3);
+            loadedStatuses[count] = rs.getInt(4);
+            count++;
+        }
+
+        // Keeps the table at most half full so that probes stay short
+        int capacity = Integer.highestOneBit(Math.max(count, 8) * 4 - 1);
+        this.ids = new int[capacity];
+        Arrays.fill(this.ids, EMPTY);
+        this.names = new String[capacity];
+        this.privilegeTypes = new AtomicIntegerArray(capacity);
+        this.statuses = new AtomicIntegerArray(capacity);
+        this.mask = capacity - 1;
+
+        int inserted = 0;
+        for(int i = 0; i < count; i++) {
+            int slot = probe(loadedIds[i]);
+            if(this.ids[slot] == EMPTY) {
+                inserted++;
+            }
+            this.ids[slot] = loadedIds[i];
+            this.names[slot] = loadedNames[i];
+            this.privilegeTypes.set(slot, loadedPrivileges[i]);
+            this.statuses.set(slot, loadedStatuses[i]);
+        }
+        this.size = inserted;
+
+        LOG.info("Loaded " + this.size + " students into memory");
+    }
+
+    /**
+     * Spreads the bits of an id so that sequential ids don't cluster in the table
+     */
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the slot holding the id, or the empty slot where it would be inserted
+     */
+    private int probe(int id) {
+        int slot = hash(id) & mask;
+        while(ids[slot] != EMPTY && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a student, which is then used to read the rest of the student's data
+     *
+     * @param id the student id
+     * @return the slot of the student, or NOT_FOUND if the student does not exist
+     */
+    public int indexOf(int id) {
+        if(id == EMPTY) {
+            return NOT_FOUND;
+        }
+        int slot = probe(id);
+        return ids[slot] == id ? slot : NOT_FOUND;
+    }
+
+    /**
+     * Returns whether a student exists
+     *
+     * @param id the student id
+     * @return whether the student is in the roster
+     */
+    public boolean contains(int id) {
+        return indexOf(id) != NOT_FOUND;
+    }
+
+    public int getId(int slot) {
+        return ids[slot];
+    }
+
+    public String getName(int slot) {
+        return names[slot];
+    }
+
+    public int getPrivilegeType(int slot) {
+        return privilegeTypes.get(slot);
+    }
+
+    public int getStatus(int slot) {
+        return statuses.get(slot);
+    }
+
+    public void setStatus(int slot, int status) {
+        statuses.set(slot, status);
+    }
+
+    /**
+     * Moves a student to their next status with a compare and set, so that two scans of the same
+     * student at once each see the status the other one left, and scans of different students
+     * never wait on each other
+     *
+     * @param slot        the slot of the student
+     * @param transitions the status each status moves to
+     * @return the status before, the status after is transitions.next of it
+     */
+    public int transition(int slot, StatusTransitions transitions) {
+        while(true) {
+            int prev = statuses.get(slot);
+            if(statuses.compareAndSet(slot, prev, transitions.next(prev))) {
+                return prev;
+            }
+        }
+    }
+
+    public void setPrivilegeType(int slot, int privilegeType) {
+        privilegeTypes.set(slot, privilegeType);
+    }
+
+    /**
+     * Updates the in memory status of a student
+     *
+     * @param id the student id
+     * @param status the new status
+     * @return whether the student exists
+     */
+    public boolean setStatusById(int id, int status) {
+        int slot = indexOf(id);
+        if(slot == NOT_FOUND) {
+            return false;
+        }
+        statuses.set(slot, status);
+        return true;
+    }
+
+    /**
+     * Updates the in memory privilege of a student
+     *
+     * @param id the student id
+     * @param privilegeType the new privilege
+     * @return whether the student exists
+     */
+    public boolean setPrivilegeTypeById(int id, int privilegeType) {
+        int slot = indexOf(id);
+        if(slot == NOT_FOUND) {
+            return false;
+        }
+        privilegeTypes.set(slot, privilegeType);
+        return true;
+    }
+
+    /**
+     * Returns the number of students in the roster
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Marks the roster as replaced. Its statuses are no longer the ones in the database, so status
+     * updates still queued for it are not written.
+     */
+    public void retire() {
+        retired = true;
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+}
@@ -0,0 +1,153 @@
+package org.millburn.kioskserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+
+class BinaryRecordEncoderTests {
+    private static final ZonedDateTime TIME = ZonedDateTime.of(2023, 11, 18, 8, 1, 2, 0, ZoneId.of("America/New_York"));
+
+    private static Records record(int number, int id, String kioskName) {
+        return new Records(number, id, 1, 0, Records.DATE_FORMAT.format(TIME), kioskName);
+    }
+
+    @Test
+    void writesZigzagVarints() {
+        // A record frame of num 1, id 0, statuses 0 and -1, an unknown time and an empty name
+        byte[] frame = payload(new BinaryRecordEncoder().record(new Records(1, 0, 0, -1, null, null)));
+        assertArrayEquals(new byte[] {BinaryRecordEncoder.RECORD, 2, 0, 0, 1, 0, 1, 0}, frame);
+
+        // 300 zigzags to 600, which takes two bytes
+        frame = payload(new BinaryRecordEncoder().record(new Records(300, Integer.MIN_VALUE, 0, 0, null, "")));
+        assertEquals((byte) 0xD8, frame[1]);
+        assertEquals(0x04, frame[2]);
+        Decoder decoder = new Decoder(frame);
+        decoder.buffer.get();
+        assertEquals(300, decoder.signed());
+        assertEquals(Integer.MIN_VALUE, decoder.signed());
+    }
+
+    @Test
+    void snapshotRoundTrips() {
+        List<Records> records = List.of(record(105, 1001, "Library"), record(104, 1002, "Gym"),
+                record(101, -7, "Library"), record(100, Integer.MAX_VALUE, null));
+        Decoder decoder = new Decoder(payload(new BinaryRecordEncoder().snapshot(records)));
+        assertEquals(BinaryRecordEncoder.SNAPSHOT, decoder.buffer.get());
+        assertEquals(records.size(), decoder.varint());
+        for(Records expected : records) {
+            assertRecord(expected, decoder.record());
+        }
+        assertFalse(decoder.buffer.hasRemaining());
+        // Library was sent once, then by its index
+        assertEquals(List.of("Library", "Gym", ""), decoder.kioskNames);
+    }
+
+    @Test
+    void recordsFollowSnapshot() {
+        BinaryRecordEncoder encoder = new BinaryRecordEncoder();
+        Decoder decoder = new Decoder(payload(encoder.snapshot(List.of(record(50, 1, "Gym")))));
+        decoder.buffer.get();
+        decoder.varint();
+        decoder.record();
+
+        // The num is sent as the difference from the last record, and Gym by its index
+        byte[] frame = payload(encoder.record(record(51, 2, "Gym")));
+        decoder.reset(frame);
+        assertEquals(BinaryRecordEncoder.RECORD, decoder.buffer.get());
+        assertRecord(record(51, 2, "Gym"), decoder.record());
+        assertEquals(2, frame[1]);
+        assertEquals(2, frame[frame.length - 1]);
+
+        // A new snapshot starts the session again
+        decoder = new Decoder(payload(encoder.snapshot(List.of(record(52, 3, "Gym")))));
+        decoder.buffer.get();
+        decoder.varint();
+        assertRecord(record(52, 3, "Gym"), decoder.record());
+    }
+
+    private static void assertRecord(Records expected, Records actual) {
+        assertEquals(expected.number(), actual.number());
+        assertEquals(expected.id(), actual.id());
+        assertEquals(expected.prev_status(), actual.prev_status());
+        assertEquals(expected.new_status(), actual.new_status());
+        assertEquals(expected.date(), actual.date());
+        assertEquals(expected.kiosk_name() == null ? "" : expected.kiosk_name(), actual.kiosk_name());
+    }
+
+    private static byte[] payload(BinaryMessage message) {
+        ByteBuffer payload = message.getPayload();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads frames the way a dashboard does, keeping the session's num and kiosk dictionary
+     */
+    private static final class Decoder {
+        private final List<String> kioskNames = new ArrayList<>();
+        private ByteBuffer buffer;
+        private long lastNumber;
+
+        Decoder(byte[] frame) {
+            this.buffer = ByteBuffer.wrap(frame);
+        }
+
+        void reset(byte[] frame) {
+            this.buffer = ByteBuffer.wrap(frame);
+        }
+
+        long varint() {
+            long value = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        long signed() {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String string() {
+            byte[] bytes = new byte[(int) varint()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Records record() {
+            lastNumber += signed();
+            int id = (int) signed();
+            int prevStatus = (int) signed();
+            int newStatus = (int) signed();
+            long epochSecond = signed();
+            String date = epochSecond == 0 ? null
+                    : Records.DATE_FORMAT.format(Instant.ofEpochSecond(epochSecond).atZone(TIME.getZone()));
+            int kiosk = (int) varint();
+            String kioskName;
+            if(kiosk == 0) {
+                kioskName = string();
+            } else if(kiosk == 1) {
+                kioskName = string();
+                kioskNames.add(kioskName);
+            } else {
+                kioskName = kioskNames.get(kiosk - 2);
+            }
+            return new Records((int) lastNumber, id, prevStatus, newStatus, date, kioskName);
+        }
+    }
+}
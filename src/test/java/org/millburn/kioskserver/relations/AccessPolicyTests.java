@@ -0,0 +1,87 @@
+package org.millburn.kioskserver.relations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class AccessPolicyTests {
+    private static final LocalDate DAY = LocalDate.of(2024, 3, 5);
+
+    private static AccessPolicy policy(int startHour, int startMinute, int endHour, int endMinute,
+                                       AccessPolicy.Window... windows) {
+        // Privilege 2 or more is accepted
+        return new AccessPolicy(new AccessRelationship("Test", 1, 2, 1, startHour, startMinute, endHour, endMinute),
+                List.of(windows));
+    }
+
+    @Test
+    void opensWindowBothEndsIncluded() {
+        AccessPolicy policy = policy(7, 30, 8, 15);
+        assertFalse(policy.isOpen(7 * 60 + 29));
+        assertTrue(policy.isOpen(7 * 60 + 30));
+        assertTrue(policy.isOpen(8 * 60 + 15));
+        assertFalse(policy.isOpen(8 * 60 + 16));
+        assertTrue(policy.isRestricted());
+    }
+
+    @Test
+    void crossesMidnight() {
+        AccessPolicy policy = policy(22, 0, 6, 0);
+        assertTrue(policy.isOpen(22 * 60));
+        assertTrue(policy.isOpen(AccessPolicy.MINUTES_PER_DAY - 1));
+        assertTrue(policy.isOpen(0));
+        assertTrue(policy.isOpen(6 * 60));
+        assertFalse(policy.isOpen(6 * 60 + 1));
+        assertFalse(policy.isOpen(21 * 60 + 59));
+    }
+
+    @Test
+    void attendsNightOnTheDayItStarted() {
+        AccessPolicy policy = policy(22, 0, 6, 0);
+        assertEquals(DAY, policy.attendanceDay(DAY, 23 * 60));
+        assertEquals(DAY.minusDays(1), policy.attendanceDay(DAY, 0));
+        assertEquals(DAY.minusDays(1), policy.attendanceDay(DAY, 6 * 60));
+        assertEquals(DAY, policy.attendanceDay(DAY, 6 * 60 + 1));
+        // Windows that don't cross midnight are attended on the day of the scan
+        assertEquals(DAY, policy(0, 0, 6, 0).attendanceDay(DAY, 60));
+    }
+
+    @Test
+    void unrestrictedWithoutStartHour() {
+        AccessPolicy policy = policy(-1, 0, 9, 0);
+        assertFalse(policy.isRestricted());
+        // The window runs from midnight
+        assertTrue(policy.isOpen(0));
+        assertTrue(policy.isOpen(9 * 60));
+        assertFalse(policy.isOpen(9 * 60 + 1));
+        // Scans outside the window are still decided by privilege
+        assertEquals(AccessPolicy.Verdict.ALLOW, policy.decide(2, 12 * 60));
+        assertEquals(AccessPolicy.Verdict.DENY, policy.decide(1, 12 * 60));
+        assertEquals(AccessPolicy.Verdict.DENY, policy.decide(12 * 60));
+        assertEquals(DAY, policy.attendanceDay(DAY, 0));
+    }
+
+    @Test
+    void decidesInsideAndOutsideWindows() {
+        AccessPolicy policy = policy(7, 30, 8, 15, new AccessPolicy.Window(14, 30, 16, 0));
+        assertEquals(AccessPolicy.Verdict.ALLOW, policy.decide(2, 8 * 60));
+        assertEquals(AccessPolicy.Verdict.ALLOW, policy.decide(3, 15 * 60));
+        assertEquals(AccessPolicy.Verdict.DENY, policy.decide(1, 8 * 60));
+        assertEquals(AccessPolicy.Verdict.OUT_OF_WINDOW, policy.decide(2, 12 * 60));
+        assertEquals(AccessPolicy.Verdict.OUT_OF_WINDOW, policy.decide(1, 12 * 60));
+        // Students that aren't in the roster are never allowed
+        assertEquals(AccessPolicy.Verdict.DENY, policy.decide(8 * 60));
+        assertEquals(AccessPolicy.Verdict.OUT_OF_WINDOW, policy.decide(12 * 60));
+    }
+
+    @Test
+    void decidesPrivilegesPastTheTable() {
+        AccessPolicy policy = policy(-1, 0, 23, 59);
+        assertEquals(AccessPolicy.Verdict.ALLOW, policy.decide(1000, 0));
+        assertEquals(AccessPolicy.Verdict.DENY, policy.decide(-5, 0));
+    }
+}
@@ -0,0 +1,49 @@
+package org.millburn.kioskserver.relations;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AttendanceWriterTests {
+    private static final LocalDate DAY = LocalDate.of(2024, 3, 5);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsQueuedStudentsWhenForgetting() {
+        // Without the writer thread the line stays queued
+        AttendanceWriter writer = new AttendanceWriter(directory.toString(), AttendanceWriter.SyncPolicy.NONE, false);
+        assertTrue(writer.append("Lunch", DAY, "Student", 12345));
+
+        writer.forgetAttendees(DAY.plusDays(5));
+        assertFalse(writer.append("Lunch", DAY, "Student", 12345));
+        assertTrue(writer.append("Lunch", DAY.plusDays(5), "Student", 12345));
+    }
+
+    @Test
+    void keepsYesterdaysStudents() {
+        AttendanceWriter writer = new AttendanceWriter(directory.toString(), AttendanceWriter.SyncPolicy.NONE, false);
+        assertTrue(writer.append("Lunch", DAY, "Student", 12345));
+        assertTrue(writer.append("Lunch", DAY.plusDays(1), "Student", 12345));
+
+        writer.forgetAttendees(DAY.plusDays(1));
+        assertFalse(writer.append("Lunch", DAY, "Student", 12345));
+    }
+
+    @Test
+    void readsWrittenStudentsAgainAfterForgetting() {
+        AttendanceWriter writer = new AttendanceWriter(directory.toString(), AttendanceWriter.SyncPolicy.NONE);
+        assertTrue(writer.append("Lunch", DAY, "Student", 12345));
+        // Writes the queued line
+        writer.shutdown();
+        writer.forgetAttendees(DAY.plusDays(5));
+
+        assertFalse(writer.append("Lunch", DAY, "Student", 12345));
+        assertTrue(writer.append("Lunch", DAY, "Other", 54321));
+    }
+}
@@ -0,0 +1,23 @@
+package org.millburn.kioskserver.student;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class CheckinServiceTests {
+    @Test
+    void parsesIdsLikeParseInt() {
+        for(String id : new String[] {"0", "7", "007", "12345", "+5", "-5", "2147483647", "-2147483648"}) {
+            assertEquals(Integer.parseInt(id), CheckinService.parseId(id), id);
+        }
+    }
+
+    @Test
+    void rejectsIdsParseIntRejects() {
+        for(String id : new String[] {"", "+", "-", "+-1", "--1", "12a", " 5", "5 ", "1.0", "2147483648",
+                "-2147483649", "99999999999999999999", "-99999999999999999999"}) {
+            assertEquals(CheckinService.INVALID_ID, CheckinService.parseId(id), id);
+        }
+        assertEquals(CheckinService.INVALID_ID, CheckinService.parseId(null));
+    }
+}
@@ -0,0 +1,66 @@
+package org.millburn.kioskserver.student;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class StatusTransitionsTests {
+    @Test
+    void togglesByDefault() {
+        StatusTransitions transitions = new StatusTransitions("0:1,1:0", 0);
+        assertEquals(1, transitions.next(0));
+        assertEquals(0, transitions.next(1));
+        // Statuses that aren't in the table move to the default
+        assertEquals(0, transitions.next(5));
+        assertEquals(0, transitions.next(-1));
+        assertEquals(0, transitions.next(1000));
+    }
+
+    @Test
+    void parsesCycleWithSpaces() {
+        StatusTransitions transitions = new StatusTransitions(" 0:1 , 1:2,2 : 0,", 3);
+        assertEquals(1, transitions.next(0));
+        assertEquals(2, transitions.next(1));
+        assertEquals(0, transitions.next(2));
+        assertEquals(3, transitions.next(4));
+    }
+
+    @Test
+    void fillsGapsWithDefault() {
+        StatusTransitions transitions = new StatusTransitions("5:6", 2);
+        assertEquals(6, transitions.next(5));
+        assertEquals(2, transitions.next(0));
+        assertEquals(2, transitions.next(4));
+    }
+
+    @Test
+    void knowsItsStatuses() {
+        StatusTransitions transitions = new StatusTransitions("0:1,1:2", 7);
+        assertTrue(transitions.isStatus(0));
+        assertTrue(transitions.isStatus(2));
+        assertTrue(transitions.isStatus(7));
+        assertFalse(transitions.isStatus(3));
+        assertFalse(transitions.isStatus(-1));
+    }
+
+    @Test
+    void emptyTableUsesDefault() {
+        StatusTransitions transitions = new StatusTransitions("", 4);
+        assertEquals(4, transitions.next(0));
+        assertTrue(transitions.isStatus(4));
+    }
+
+    @Test
+    void rejectsInvalidTables() {
+        assertThrows(IllegalArgumentException.class, () -> new StatusTransitions("0:1:2", 0));
+        assertThrows(IllegalArgumentException.class, () -> new StatusTransitions("0", 0));
+        assertThrows(NumberFormatException.class, () -> new StatusTransitions("a:1", 0));
+        assertThrows(IllegalArgumentException.class, () -> new StatusTransitions("-1:0", 0));
+        assertThrows(IllegalArgumentException.class, () -> new StatusTransitions("128:0", 0));
+        assertThrows(IllegalArgumentException.class, () -> new StatusTransitions("0:-1", 0));
+        assertThrows(IllegalArgumentException.class, () -> new StatusTransitions("0:1", -1));
+    }
+}